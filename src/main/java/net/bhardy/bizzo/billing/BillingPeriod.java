@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing;
+
+import java.time.LocalDate;
+import java.util.Iterator;
+
+/**
+ * The days from one due date up to, but not including, the next.
+ * <p>
+ * BillingPolicy.periodContaining() hands periods back packed into a long, the
+ * first day's epoch day in the high 32 bits and the next due date's in the low
+ * 32, so looking one up doesn't create any objects. Unpack them with startOf()
+ * and endOf(), or have them written into one of these, which you can reuse:
+ * <pre>
+ *     BillingPeriod period = new BillingPeriod();
+ *     for (Usage usage : usages) {
+ *         if (!period.contains(usage.epochDay())) {
+ *             policy.periodContaining(usage.epochDay(), period);
+ *         }
+ *         ...
+ *     }
+ * </pre>
+ * Instances are mutable and not thread safe.
+ */
+public final class BillingPeriod {
+    /**
+     * What scan() returns when there's no due date between where it started and
+     * the day it was looking for.
+     */
+    public static final long NOT_FOUND = Long.MIN_VALUE;
+
+    private int startEpochDay;
+    private int endEpochDay;
+
+    public static long pack(long startEpochDay, long endEpochDay) {
+        return ((long) Math.toIntExact(startEpochDay) << 32) | (Math.toIntExact(endEpochDay) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the first day of a packed period, i.e. its due date, as an epoch day.
+     */
+    public static int startOf(long period) {
+        return (int) (period >> 32);
+    }
+
+    /**
+     * @return the day after the last day of a packed period, i.e. the next due
+     * date, as an epoch day.
+     */
+    public static int endOf(long period) {
+        return (int) period;
+    }
+
+    /**
+     * Find the period containing a day by going through a policy's due dates.
+     *
+     * @param policy - the policy
+     * @param from - where to start looking, far enough back to find the due date before epochDay
+     * @param epochDay - the day in question
+     *
+     * @return the packed period, or NOT_FOUND if no due date from on comes on or before epochDay.
+     */
+    public static long scan(BillingPolicy policy, LocalDate from, long epochDay) {
+        long start = NOT_FOUND;
+        final Iterator<LocalDate> dates = policy.upcomingDueDates(from).iterator();
+        while (true) {
+            final long due = dates.next().toEpochDay();
+            if (due > epochDay) {
+                return start == NOT_FOUND ? NOT_FOUND : pack(start, due);
+            }
+            start = due;
+        }
+    }
+
+    /**
+     * @param period - a packed period
+     */
+    public void set(long period) {
+        this.startEpochDay = startOf(period);
+        this.endEpochDay = endOf(period);
+    }
+
+    public int getStartEpochDay() {
+        return startEpochDay;
+    }
+
+    public int getEndEpochDay() {
+        return endEpochDay;
+    }
+
+    public LocalDate getStart() {
+        return LocalDate.ofEpochDay(startEpochDay);
+    }
+
+    public LocalDate getEnd() {
+        return LocalDate.ofEpochDay(endEpochDay);
+    }
+
+    public int lengthInDays() {
+        return endEpochDay - startEpochDay;
+    }
+
+    public boolean contains(long epochDay) {
+        return epochDay >= startEpochDay && epochDay < endEpochDay;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + getStart() + ", " + getEnd() + ")";
+    }
+}
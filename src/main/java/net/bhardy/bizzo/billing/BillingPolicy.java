@@ -18,7 +18,19 @@ package net.bhardy.bizzo.billing;
 import net.bhardy.bizzo.billing.impl.PolicyBuilderImpl;
 
 import java.time.LocalDate;
+import java.time.Period;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A billing policy helps you figure out billing cycles, i.e. when bills are due.
@@ -26,6 +38,11 @@ import java.util.stream.Stream;
  * START HERE with a call to BillingPolicy.builder() to start creating a policy.
  */
 public interface BillingPolicy {
+    /**
+     * How many cycles back periodContaining() will look for a due date before giving up.
+     */
+    int MAX_PERIOD_SEARCH_CYCLES = 16;
+
     /**
      * Given a date, determine if this billing policy is falling due on that
      * date.
@@ -38,6 +55,135 @@ public interface BillingPolicy {
      */
     boolean isDueOn(LocalDate day);
 
+    /**
+     * Check a run of consecutive days in one go, e.g. for showing a calendar.
+     * This gives the same answers as calling isDueOn() for each day, but policies
+     * can do it much more cheaply, e.g. a filtered policy only has to replay its
+     * schedule once rather than once per day.
+     *
+     * @param from - the first day to check
+     * @param into - receives the answers: into[i] is whether the bill is due on
+     *             from.plusDays(i). Its length decides how many days are checked.
+     */
+    default void isDueOn(LocalDate from, boolean[] into) {
+        final long first = from.toEpochDay();
+        for (int i = 0; i < into.length; i++) {
+            into[i] = isDueOn(LocalDate.ofEpochDay(first + i));
+        }
+    }
+
+    /**
+     * Check any number of days in one go.
+     *
+     * @param epochDays - the days to check, as from LocalDate.toEpochDay(). Days
+     *                  which are close together, and ideally sorted, are cheapest.
+     * @param into - receives the answers: into[i] is whether the bill is due on epochDays[i]
+     */
+    default void isDueOn(int[] epochDays, boolean[] into) {
+        if (into.length < epochDays.length) {
+            throw new IllegalArgumentException("need room for " + epochDays.length + " answers, got " + into.length);
+        }
+        for (int i = 0; i < epochDays.length; i++) {
+            into[i] = isDueOn(LocalDate.ofEpochDay(epochDays[i]));
+        }
+    }
+
+    /**
+     * Find the due days in a run of consecutive days.
+     *
+     * @param from - the first day to check
+     * @param days - how many days to check
+     *
+     * @return a bitset where bit i is set if the bill is due on from.plusDays(i).
+     */
+    default BitSet dueDays(LocalDate from, int days) {
+        final boolean[] due = new boolean[days];
+        isDueOn(from, due);
+        final BitSet bits = new BitSet(days);
+        for (int i = 0; i < days; i++) {
+            if (due[i]) {
+                bits.set(i);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Find the billing period a day falls in: from the last due date on or before
+     * the day, up to but not including the next due date after it.
+     * <p>
+     * The default looks for the earlier due date a couple of cycles back, then
+     * further if it has to, so like isDueOn() it can give up on a policy which
+     * isn't due for a very long time.
+     *
+     * @param epochDay - the day, as from LocalDate.toEpochDay()
+     *
+     * @return the period, packed as described in {@link BillingPeriod}.
+     *
+     * @throws IllegalStateException if there's no due date within a reasonable
+     * distance before the day.
+     */
+    default long periodContaining(long epochDay) {
+        final LocalDate day = LocalDate.ofEpochDay(epochDay);
+        final Period cycle = getCycleType().getPeriod();
+        for (int cycles = 2; cycles <= MAX_PERIOD_SEARCH_CYCLES; cycles *= 2) {
+            final long period = BillingPeriod.scan(this, day.minus(cycle.multipliedBy(cycles)), epochDay);
+            if (period != BillingPeriod.NOT_FOUND) {
+                return period;
+            }
+        }
+        throw new IllegalStateException("not due in the " + MAX_PERIOD_SEARCH_CYCLES + " cycles before " + day);
+    }
+
+    /**
+     * Find the billing period a day falls in, without creating any objects.
+     *
+     * @param day - the day
+     * @param into - receives the period
+     */
+    default void periodContaining(LocalDate day, BillingPeriod into) {
+        into.set(periodContaining(day.toEpochDay()));
+    }
+
+    /**
+     * Find the billing periods of lots of days, e.g. usage records, in one pass
+     * through the due dates rather than a search per day.
+     *
+     * @param sortedEpochDays - the days, in ascending order
+     * @param into - receives the packed periods: into[i] is the period containing sortedEpochDays[i]
+     */
+    default void periodsContaining(int[] sortedEpochDays, long[] into) {
+        if (into.length < sortedEpochDays.length) {
+            throw new IllegalArgumentException("need room for " + sortedEpochDays.length + " answers, got " + into.length);
+        }
+        if (sortedEpochDays.length == 0) {
+            return;
+        }
+        // past this many due dates it's cheaper to look the day up directly
+        final int walkLimit = 8;
+        long start = 0;
+        long end = 0;
+        Iterator<LocalDate> dates = null;
+        for (int i = 0; i < sortedEpochDays.length; i++) {
+            final long day = sortedEpochDays[i];
+            if (i > 0 && day < sortedEpochDays[i - 1]) {
+                throw new IllegalArgumentException("days are not sorted at index " + i);
+            }
+            for (int walked = 0; dates != null && day >= end && walked < walkLimit; walked++) {
+                start = end;
+                end = dates.next().toEpochDay();
+            }
+            if (dates == null || day >= end) {
+                final long period = periodContaining(day);
+                start = BillingPeriod.startOf(period);
+                end = BillingPeriod.endOf(period);
+                // restarting just after a due date carries on exactly where it left off
+                dates = upcomingDueDates(LocalDate.ofEpochDay(end + 1)).iterator();
+            }
+            into[i] = BillingPeriod.pack(start, end);
+        }
+    }
+
     /**
      * Figure out which dates are upcoming due dates according to this billing
      * policy.
@@ -55,6 +201,39 @@ public interface BillingPolicy {
      */
     Stream<LocalDate> upcomingDueDates(LocalDate day);
 
+    /**
+     * Like upcomingDueDates(), but only for the cycles that fall due before the
+     * cut-off before any filter moves them, wherever the filter moves them to.
+     * A timeline uses this to find the bills an old policy still owes after a new
+     * one takes over.
+     * <p>
+     * The default suits a policy that doesn't move its due dates, and stops at the
+     * cut-off.
+     *
+     * @param day - the first date to check
+     * @param cutOff - the first day whose cycles don't count
+     *
+     * @return a finite stream of due dates, in chronological order.
+     */
+    default Stream<LocalDate> dueDatesStartedBefore(LocalDate day, LocalDate cutOff) {
+        final Iterator<LocalDate> dates = upcomingDueDates(day).iterator();
+        return StreamSupport.stream(new Spliterators.AbstractSpliterator<LocalDate>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super LocalDate> action) {
+                if (!dates.hasNext()) {
+                    return false;
+                }
+                final LocalDate date = dates.next();
+                if (!date.isBefore(cutOff)) {
+                    return false;
+                }
+                action.accept(date);
+                return true;
+            }
+        }, false);
+    }
+
     /**
      * Get the rough billing cycle type for this policy, e.g. MONTHLY, WEEKLY etc.
      *
@@ -62,6 +241,52 @@ public interface BillingPolicy {
      */
     CycleType getCycleType();
 
+    /**
+     * The holiday calendars this policy's filters consult. When one of these
+     * changes, the policy's due dates may move.
+     *
+     * @return the calendars, empty if the policy doesn't depend on any.
+     */
+    default Set<HolidayCalendar> calendars() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * Describes how this policy was built, e.g.
+     * "monthlyOnDay(15).filter(not(daysOfWeek(SATURDAY,SUNDAY))).action(NEXT_DAY)".
+     * Two policies with the same description and the same calendar contents have
+     * the same due dates.
+     * <p>
+     * The default is null, for a policy that can't be described, as is any policy
+     * built with a filter that can't be.
+     *
+     * @see PolicyFilter#describe()
+     * @return the description, or null if this policy can't be described.
+     */
+    default String describe() {
+        return null;
+    }
+
+    /**
+     * Check lots of policies against a single day, e.g. for a billing run.
+     * <p>
+     * Each distinct policy instance is only asked once, so if your accounts share
+     * policies, as they should, this is a lot cheaper than asking per account.
+     *
+     * @param policies - the policies to check
+     * @param day - the day to check them on
+     * @param into - receives the answers: into[i] is whether policies.get(i) is due
+     */
+    static void areDueOn(List<? extends BillingPolicy> policies, LocalDate day, boolean[] into) {
+        if (into.length < policies.size()) {
+            throw new IllegalArgumentException("need room for " + policies.size() + " answers, got " + into.length);
+        }
+        final Map<BillingPolicy, Boolean> answers = new IdentityHashMap<>();
+        for (int i = 0; i < policies.size(); i++) {
+            into[i] = answers.computeIfAbsent(policies.get(i), policy -> policy.isDueOn(day));
+        }
+    }
+
     /**
      * To create a new policy, call BillingPolicy.builder(). This will enable you to
      * fluently start building a policy.
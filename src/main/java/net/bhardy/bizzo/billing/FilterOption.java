@@ -40,4 +40,16 @@ public interface FilterOption {
      * @return the builder stage for selection an action when the filter fails.
      */
     ActionChoice filter(PolicyFilter filter);
+
+    /**
+     * Apply a filter from the builder's registry, looked up by name every time
+     * it's applied.
+     *
+     * @see PolicyBuilder#withRegistry(FilterRegistry)
+     * @see FilterRegistry#ref(String)
+     * @param name - the filter's name in the registry
+     * @return the builder stage for selection an action when the filter fails.
+     * @throws IllegalStateException if the builder has no registry.
+     */
+    ActionChoice filter(String name);
 }
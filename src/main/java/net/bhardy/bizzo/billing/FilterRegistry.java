@@ -0,0 +1,327 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing;
+
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static net.bhardy.bizzo.billing.PolicyFilter.DEFAULT_COST;
+import static net.bhardy.bizzo.billing.PolicyFilter.DEFAULT_PASS_RATE;
+
+/**
+ * Named filters and holiday calendars which can be replaced while policies that
+ * use them are being evaluated, e.g. when reference data is reloaded in the
+ * middle of a billing run.
+ * <p>
+ * The registry's contents are an immutable, versioned Snapshot. Readers get at
+ * it with a single volatile read and never block. Writers copy it, make their
+ * change and publish the copy as the next version; writes are serialised with
+ * each other but never hold up readers.
+ * <p>
+ * Policies refer to entries by name, either with ref() or through
+ * PolicyBuilder.withRegistry(registry)...filter("name"). A reference looks its
+ * name up every time it's applied, so it sees the latest version. To keep a
+ * whole billing run consistent, pin a snapshot for it; references applied on
+ * that thread then see the pinned version until the pin is closed:
+ * <pre>
+ *     try (FilterRegistry.Pin pin = registry.pin()) {
+ *         for (Account account : accounts) {
+ *             bill(account, account.policy().isDueOn(today));
+ *         }
+ *     }
+ * </pre>
+ * Pins are per thread, so a run spread over several threads should take one
+ * snapshot and pin it on each of them with pin(snapshot).
+ */
+public final class FilterRegistry {
+    private final ThreadLocal<Snapshot> pinned = new ThreadLocal<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Snapshot current = new Snapshot(0, Collections.emptyMap());
+
+    /**
+     * @return the latest version of the registry's contents.
+     */
+    public Snapshot snapshot() {
+        return current;
+    }
+
+    /**
+     * @return the snapshot references on this thread are using: the pinned one if
+     * there is one, otherwise the latest.
+     */
+    public Snapshot visible() {
+        final Snapshot pin = pinned.get();
+        return pin != null ? pin : current;
+    }
+
+    /**
+     * Add or replace a filter.
+     *
+     * @param name - the name policies refer to it by
+     * @param filter - the filter
+     *
+     * @return the new version.
+     */
+    public Snapshot put(String name, PolicyFilter filter) {
+        return putAll(Collections.singletonMap(name, filter));
+    }
+
+    /**
+     * Add or replace a holiday calendar, under its own name. The registry keeps a
+     * copy of the calendar's current days, so pinned snapshots aren't affected by
+     * later edits to it; put it again to publish them. Nothing listens to the
+     * copy, so anything depending on the calendar should listen to the registry.
+     *
+     * @param calendar - the calendar
+     *
+     * @return the new version.
+     */
+    public Snapshot putCalendar(HolidayCalendar calendar) {
+        return put(calendar.getName(), new HolidayCalendar(calendar.getName(), calendar.days()));
+    }
+
+    /**
+     * Add or replace several filters, published as a single version.
+     *
+     * @param filters - the filters, by name
+     *
+     * @return the new version.
+     */
+    public Snapshot putAll(Map<String, ? extends PolicyFilter> filters) {
+        final Snapshot published;
+        synchronized (this) {
+            final Map<String, PolicyFilter> next = new HashMap<>(current.filters);
+            for (Map.Entry<String, ? extends PolicyFilter> filter : filters.entrySet()) {
+                if (filter.getKey() == null || filter.getValue() == null) {
+                    throw new IllegalArgumentException("names and filters must not be null");
+                }
+                next.put(filter.getKey(), filter.getValue());
+            }
+            published = publish(next);
+        }
+        return notifyListeners(published);
+    }
+
+    /**
+     * Remove a filter. References to it will fail unless they're pinned to a
+     * snapshot that has it.
+     *
+     * @param name - the filter's name
+     *
+     * @return the new version.
+     */
+    public Snapshot remove(String name) {
+        final Snapshot published;
+        synchronized (this) {
+            final Map<String, PolicyFilter> next = new HashMap<>(current.filters);
+            next.remove(name);
+            published = publish(next);
+        }
+        return notifyListeners(published);
+    }
+
+    private Snapshot publish(Map<String, PolicyFilter> filters) {
+        final Snapshot next = new Snapshot(current.version + 1, filters);
+        current = next;
+        return next;
+    }
+
+    private Snapshot notifyListeners(Snapshot published) {
+        listeners.forEach(listener -> listener.registryChanged(this, published));
+        return published;
+    }
+
+    /**
+     * Get told about every new version, e.g. to recompute schedules that use
+     * named filters. Listeners are called on the writing thread, after the
+     * version is published, and versions published close together may arrive in
+     * either order; compare getVersion() if that matters.
+     *
+     * @param listener - the listener
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Pin the latest snapshot to this thread.
+     *
+     * @return the pin, close it to unpin.
+     */
+    public Pin pin() {
+        return pin(current);
+    }
+
+    /**
+     * Pin a snapshot to this thread, e.g. one taken by the thread that started a run.
+     * Pins nest: closing one restores whatever was pinned before it.
+     *
+     * @param snapshot - a snapshot from this registry
+     *
+     * @return the pin, close it to unpin.
+     */
+    public Pin pin(Snapshot snapshot) {
+        if (snapshot == null) {
+            throw new IllegalArgumentException("snapshot must not be null");
+        }
+        final Pin pin = new Pin(pinned.get(), snapshot);
+        pinned.set(snapshot);
+        return pin;
+    }
+
+    /**
+     * Get a filter which looks up a name in this registry every time it's
+     * applied, in the pinned snapshot if there is one, otherwise the latest.
+     *
+     * @param name - the filter's name. It needn't be registered yet, but must be
+     *             by the time the filter is applied.
+     *
+     * @return the reference.
+     */
+    public PolicyFilter ref(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name must not be null");
+        }
+        return new PolicyFilter() {
+            @Override
+            public boolean applies(LocalDate today) {
+                return resolve().applies(today);
+            }
+
+            @Override
+            public double costHint() {
+                final PolicyFilter filter = find();
+                return filter != null ? filter.costHint() : DEFAULT_COST;
+            }
+
+            @Override
+            public double passRateHint() {
+                final PolicyFilter filter = find();
+                return filter != null ? filter.passRateHint() : DEFAULT_PASS_RATE;
+            }
+
+            @Override
+            public Set<HolidayCalendar> calendars() {
+                final PolicyFilter filter = find();
+                return filter != null ? filter.calendars() : Collections.emptySet();
+            }
+
+            @Override
+            public String describe() {
+                final PolicyFilter filter = find();
+                if (filter == null) {
+                    return "ref(" + name + "=missing)";
+                }
+                final String described = filter.describe();
+                return described == null ? null : "ref(" + name + "=" + described + ")";
+            }
+
+            private PolicyFilter find() {
+                return visible().filters.get(name);
+            }
+
+            /**
+             * Only applying a missing filter fails. Everything else copes, so policies
+             * can be built before the registry is filled in.
+             */
+            private PolicyFilter resolve() {
+                final Snapshot snapshot = visible();
+                final PolicyFilter filter = snapshot.filters.get(name);
+                if (filter == null) {
+                    throw new IllegalStateException("no filter named " + name + " in version " + snapshot.version);
+                }
+                return filter;
+            }
+        };
+    }
+
+    /**
+     * One version of a registry's contents. Never changes.
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final Map<String, PolicyFilter> filters;
+
+        private Snapshot(long version, Map<String, PolicyFilter> filters) {
+            this.version = version;
+            this.filters = Collections.unmodifiableMap(filters);
+        }
+
+        /**
+         * @return a number which goes up by one with every change to the registry.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        public Set<String> names() {
+            return filters.keySet();
+        }
+
+        public Optional<PolicyFilter> get(String name) {
+            return Optional.ofNullable(filters.get(name));
+        }
+
+        @Override
+        public String toString() {
+            return "FilterRegistry.Snapshot(v" + version + " " + filters.keySet() + ")";
+        }
+    }
+
+    /**
+     * Gets told about new versions of a registry.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void registryChanged(FilterRegistry registry, Snapshot published);
+    }
+
+    /**
+     * A snapshot pinned to a thread. Close it on the same thread.
+     */
+    public final class Pin implements AutoCloseable {
+        private final Snapshot previous;
+        private final Snapshot snapshot;
+
+        private Pin(Snapshot previous, Snapshot snapshot) {
+            this.previous = previous;
+            this.snapshot = snapshot;
+        }
+
+        public Snapshot getSnapshot() {
+            return snapshot;
+        }
+
+        @Override
+        public void close() {
+            if (previous == null) {
+                pinned.remove();
+            } else {
+                pinned.set(previous);
+            }
+        }
+    }
+}
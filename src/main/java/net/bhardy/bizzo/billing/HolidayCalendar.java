@@ -0,0 +1,278 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A named set of days, such as public holidays, which can change over time.
+ * <p>
+ * A calendar is a PolicyFilter which applies on the days it contains, so the
+ * usual way to use one is to avoid its days:<br>
+ * <code>
+ *     .filter(not(publicHolidays)).action(NEXT_DAY)
+ * </code>
+ * <p>
+ * Policies remember which calendars their filters use (see
+ * {@link BillingPolicy#calendars()}), and anyone interested can listen for edits,
+ * which is how a ScheduleTracker knows which due dates to recompute.
+ * <p>
+ * Reads never block: the days are held in an immutable set which edits replace
+ * wholesale.
+ */
+public final class HolidayCalendar implements PolicyFilter {
+    private static final double DAYS_PER_YEAR = 365.2425;
+
+    private final String name;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Contents contents;
+
+    /**
+     * @param name - what to call this calendar, e.g. "US federal holidays"
+     * @param days - the days initially in it
+     */
+    public HolidayCalendar(String name, Collection<LocalDate> days) {
+        if (name == null) {
+            throw new IllegalArgumentException("name must not be null");
+        }
+        this.name = name;
+        this.contents = new Contents(new HashSet<>(days), 0);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return a number which goes up by one with every edit that changes something.
+     */
+    public long getVersion() {
+        return contents.version;
+    }
+
+    /**
+     * A hash of the days in this calendar. Unlike the version, this is the same
+     * in every run for the same days, so it can be persisted.
+     *
+     * @return the hash.
+     */
+    public long getFingerprint() {
+        return contents.fingerprint;
+    }
+
+    /**
+     * @return the days currently in this calendar. The set will not change.
+     */
+    public Set<LocalDate> days() {
+        return contents.days;
+    }
+
+    public boolean contains(LocalDate day) {
+        return contents.days.contains(day);
+    }
+
+    @Override
+    public boolean applies(LocalDate today) {
+        return contents.days.contains(today);
+    }
+
+    @Override
+    public double costHint() {
+        return CHEAP_COST;
+    }
+
+    /**
+     * Assumes the days are spread over a year, which is typical for holidays.
+     */
+    @Override
+    public double passRateHint() {
+        return Math.min(1.0, contents.days.size() / DAYS_PER_YEAR);
+    }
+
+    @Override
+    public Set<HolidayCalendar> calendars() {
+        return Collections.singleton(this);
+    }
+
+    @Override
+    public String describe() {
+        return "calendar(" + name + ")";
+    }
+
+    /**
+     * Add days to the calendar, telling listeners about any that weren't already in it.
+     *
+     * @param added - days to add
+     *
+     * @return what actually changed.
+     */
+    public Change add(Collection<LocalDate> added) {
+        return edit(added, Collections.emptySet());
+    }
+
+    /**
+     * Remove days from the calendar, telling listeners about any that were in it.
+     *
+     * @param removed - days to remove
+     *
+     * @return what actually changed.
+     */
+    public Change remove(Collection<LocalDate> removed) {
+        return edit(Collections.emptySet(), removed);
+    }
+
+    /**
+     * Add and remove days in one go, so listeners see a single change.
+     *
+     * @param added - days to add
+     * @param removed - days to remove
+     *
+     * @return what actually changed.
+     */
+    public Change edit(Collection<LocalDate> added, Collection<LocalDate> removed) {
+        final Change change;
+        synchronized (this) {
+            final Contents current = contents;
+            final Set<LocalDate> next = new HashSet<>(current.days);
+            final SortedSet<LocalDate> reallyAdded = new TreeSet<>();
+            final SortedSet<LocalDate> reallyRemoved = new TreeSet<>();
+            for (LocalDate day : removed) {
+                if (next.remove(day)) {
+                    reallyRemoved.add(day);
+                }
+            }
+            for (LocalDate day : added) {
+                if (next.add(day)) {
+                    if (!reallyRemoved.remove(day)) {
+                        reallyAdded.add(day);
+                    }
+                }
+            }
+            if (reallyAdded.isEmpty() && reallyRemoved.isEmpty()) {
+                return new Change(this, current.version, reallyAdded, reallyRemoved);
+            }
+            contents = new Contents(next, current.version + 1);
+            change = new Change(this, current.version + 1, reallyAdded, reallyRemoved);
+        }
+        listeners.forEach(listener -> listener.calendarChanged(change));
+        return change;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public String toString() {
+        return "HolidayCalendar(" + name + " v" + getVersion() + ")";
+    }
+
+    /**
+     * Everything an edit replaces, kept together so readers see a consistent set.
+     */
+    private static final class Contents {
+        private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+        private static final long FNV_PRIME = 0x100000001b3L;
+
+        private final Set<LocalDate> days;
+        private final long version;
+        private final long fingerprint;
+
+        Contents(Set<LocalDate> days, long version) {
+            this.days = Collections.unmodifiableSet(days);
+            this.version = version;
+            this.fingerprint = fingerprint(days);
+        }
+
+        private static long fingerprint(Set<LocalDate> days) {
+            long hash = FNV_OFFSET;
+            for (long epochDay : days.stream().mapToLong(LocalDate::toEpochDay).sorted().toArray()) {
+                hash = (hash ^ epochDay) * FNV_PRIME;
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * Gets told about edits to a calendar, after they've been made. Listeners are
+     * called on the editing thread.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void calendarChanged(Change change);
+    }
+
+    /**
+     * The days an edit actually added to or removed from a calendar.
+     */
+    public static final class Change {
+        private final HolidayCalendar calendar;
+        private final long version;
+        private final SortedSet<LocalDate> added;
+        private final SortedSet<LocalDate> removed;
+
+        Change(HolidayCalendar calendar, long version, SortedSet<LocalDate> added, SortedSet<LocalDate> removed) {
+            this.calendar = calendar;
+            this.version = version;
+            this.added = Collections.unmodifiableSortedSet(added);
+            this.removed = Collections.unmodifiableSortedSet(removed);
+        }
+
+        public HolidayCalendar getCalendar() {
+            return calendar;
+        }
+
+        /**
+         * @return the calendar's version after this change.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        public SortedSet<LocalDate> getAdded() {
+            return added;
+        }
+
+        public SortedSet<LocalDate> getRemoved() {
+            return removed;
+        }
+
+        /**
+         * @return every day whose membership changed, in order.
+         */
+        public SortedSet<LocalDate> getChangedDays() {
+            final SortedSet<LocalDate> changed = new TreeSet<>(added);
+            changed.addAll(removed);
+            return changed;
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty();
+        }
+    }
+}
@@ -15,12 +15,37 @@
  */
 package net.bhardy.bizzo.billing;
 
+import net.bhardy.bizzo.billing.metrics.PolicyMetrics;
+
 import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.YearMonth;
 
 /**
  * Starting points for creating filters, based on the basic CycleTypes.
  */
 public interface PolicyBuilder {
+    /**
+     * Policies built from the returned builder will report what they're doing
+     * to the supplied metrics, e.g. how many filter evaluations they make.
+     *
+     * @param metrics - where to report to, or PolicyMetrics.DISABLED for nowhere
+     *
+     * @return a builder whose policies are instrumented.
+     */
+    PolicyBuilder withMetrics(PolicyMetrics metrics);
+
+    /**
+     * Policies built from the returned builder can use filters by name, with
+     * filter("name"). The name is looked up in the registry each time the filter
+     * is applied, so replacing it in the registry changes existing policies.
+     *
+     * @param registry - where to find named filters
+     *
+     * @return a builder whose filters can come from the registry.
+     */
+    PolicyBuilder withRegistry(FilterRegistry registry);
+
     /**
      * This bill will be due every single day. Unless you do some filtering.
      */
@@ -33,6 +58,68 @@ public interface PolicyBuilder {
 
     /**
      * This bill will be due once a a month on the specified day of month (number).
+     * In months too short for that day, it's due on the last day of the month.
      */
     FilterOption monthlyOnDay(int dayOfMonth);
+
+    /**
+     * This bill will be due on the last day of every month.
+     */
+    FilterOption monthlyOnLastDay();
+
+    /**
+     * This bill will be due once every cycle, starting from an anchor date, which
+     * is a due date. Cycles of days and weeks repeat every so many days. Cycles of
+     * months repeat on the anchor's day of the month, or the last day of the month
+     * if it's too short.
+     *
+     * @param cycleType - how often the bill is due
+     * @param anchor - any day the bill is due, earlier due dates are included too
+     */
+    FilterOption cycle(CycleType cycleType, LocalDate anchor);
+
+    /**
+     * This bill will be due on the last day of the month, once every cycle of
+     * months, starting from an anchor month.
+     *
+     * @param cycleType - how often the bill is due, MONTHLY or longer
+     * @param anchor - any month the bill is due in
+     */
+    FilterOption cycleOnLastDayOfMonth(CycleType cycleType, YearMonth anchor);
+
+    /**
+     * This bill will be due every two weeks, on the anchor date and every 14 days either side of it.
+     */
+    default FilterOption biweekly(LocalDate anchor) {
+        return cycle(CycleType.BIWEEKLY, anchor);
+    }
+
+    /**
+     * This bill will be due every two months, on the anchor's day of the month.
+     */
+    default FilterOption bimonthly(LocalDate anchor) {
+        return cycle(CycleType.BIMONTHLY, anchor);
+    }
+
+    /**
+     * This bill will be due every three months, on the anchor's day of the month.
+     */
+    default FilterOption quarterly(LocalDate anchor) {
+        return cycle(CycleType.QUARTERLY, anchor);
+    }
+
+    /**
+     * This bill will be due every six months, on the anchor's day of the month.
+     */
+    default FilterOption semiannually(LocalDate anchor) {
+        return cycle(CycleType.SEMIANNUALLY, anchor);
+    }
+
+    /**
+     * This bill will be due once a year, on the anchor's day and month. If that's
+     * the 29th of February, it's due on the 28th in other years.
+     */
+    default FilterOption annually(LocalDate anchor) {
+        return cycle(CycleType.ANNUALLY, anchor);
+    }
 }
@@ -15,8 +15,12 @@
  */
 package net.bhardy.bizzo.billing;
 
+import net.bhardy.bizzo.billing.impl.CompositeFilter;
+
 import java.time.DayOfWeek;
 import java.time.LocalDate;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -27,9 +31,116 @@ import java.util.stream.Stream;
  * These are applied with the builder.
  */
 public interface PolicyFilter {
+    /**
+     * The cost hint for a filter nobody has told us anything about. Built in filters
+     * that only look at fields of the date use {@link #CHEAP_COST}.
+     */
+    double DEFAULT_COST = 10.0;
+
+    /**
+     * The cost hint for a trivial in-memory check of the date, e.g. its day of week.
+     */
+    double CHEAP_COST = 1.0;
+
+    /**
+     * The pass rate hint for a filter nobody has told us anything about.
+     */
+    double DEFAULT_PASS_RATE = 0.5;
 
     boolean applies(LocalDate today);
 
+    /**
+     * A rough, relative estimate of how expensive a single call to applies() is.
+     * Composite filters use this to decide which of their children to try first
+     * until they have measured the real thing.
+     *
+     * @return the relative cost, where {@link #CHEAP_COST} is a trivial check.
+     */
+    default double costHint() {
+        return DEFAULT_COST;
+    }
+
+    /**
+     * A rough estimate of the fraction of days this filter lets through.
+     *
+     * @return a number between 0 (never applies) and 1 (always applies).
+     */
+    default double passRateHint() {
+        return DEFAULT_PASS_RATE;
+    }
+
+    /**
+     * The holiday calendars this filter consults, so that anything depending on
+     * the filter can find out when they change.
+     *
+     * @return the calendars, empty for filters which don't use any.
+     */
+    default Set<HolidayCalendar> calendars() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * Describes what this filter does, in a form that is the same from one run to
+     * the next, e.g. "not(daysOfWeek(SATURDAY,SUNDAY))". This is used to tell
+     * whether precomputed schedules still match a policy.
+     * <p>
+     * Built in filters describe themselves. A lambda can't: two lambdas from the
+     * same place in the code share a class but can capture different data. So the
+     * default is null, meaning "can't say", and precomputed schedules are never
+     * used for a policy with such a filter in it. Implement PolicyFilter as a class
+     * and override this if you want them to be.
+     *
+     * @return the description, or null if this filter can't be described.
+     */
+    default String describe() {
+        return null;
+    }
+
+    /**
+     * Attaches cost and pass rate hints to a filter, e.g. to let composites know
+     * that a holiday lookup is expensive and rarely fails.
+     *
+     * @param filter - the filter to describe
+     * @param cost - relative cost of calling it, see {@link #costHint()}
+     * @param passRate - fraction of days it lets through, see {@link #passRateHint()}
+     *
+     * @return a filter behaving exactly like the supplied one, with the given hints.
+     */
+    static PolicyFilter withHints(PolicyFilter filter, double cost, double passRate) {
+        if (cost < 0 || Double.isNaN(cost)) {
+            throw new IllegalArgumentException("cost must be non-negative: " + cost);
+        }
+        if (!(passRate >= 0 && passRate <= 1)) {
+            throw new IllegalArgumentException("passRate must be between 0 and 1: " + passRate);
+        }
+        return new PolicyFilter() {
+            @Override
+            public boolean applies(LocalDate today) {
+                return filter.applies(today);
+            }
+
+            @Override
+            public double costHint() {
+                return cost;
+            }
+
+            @Override
+            public double passRateHint() {
+                return passRate;
+            }
+
+            @Override
+            public Set<HolidayCalendar> calendars() {
+                return filter.calendars();
+            }
+
+            @Override
+            public String describe() {
+                return filter.describe();
+            }
+        };
+    }
+
     /**
      * Create a filter for particular days of the week.
      *
@@ -38,8 +149,33 @@ public interface PolicyFilter {
      * @return A filter which only allows the selected days of the week.
      */
     static PolicyFilter daysOfWeek(DayOfWeek... days) {
-        final Set<DayOfWeek> fallingDays = Stream.of(days).collect(Collectors.toSet());
-        return today -> fallingDays.contains(today.getDayOfWeek());
+        final Set<DayOfWeek> fallingDays = EnumSet.noneOf(DayOfWeek.class);
+        Stream.of(days).forEach(fallingDays::add);
+        final double passRate = fallingDays.size() / (double) DayOfWeek.values().length;
+        final String description = fallingDays.stream()
+                .map(DayOfWeek::name)
+                .collect(Collectors.joining(",", "daysOfWeek(", ")"));
+        return new PolicyFilter() {
+            @Override
+            public boolean applies(LocalDate today) {
+                return fallingDays.contains(today.getDayOfWeek());
+            }
+
+            @Override
+            public double costHint() {
+                return CHEAP_COST;
+            }
+
+            @Override
+            public double passRateHint() {
+                return passRate;
+            }
+
+            @Override
+            public String describe() {
+                return description;
+            }
+        };
     }
 
     /**
@@ -53,6 +189,63 @@ public interface PolicyFilter {
      * @return the resulting negating filter.
      */
     static PolicyFilter not(PolicyFilter other) {
-        return today -> ! other.applies(today);
+        return new PolicyFilter() {
+            @Override
+            public boolean applies(LocalDate today) {
+                return ! other.applies(today);
+            }
+
+            @Override
+            public double costHint() {
+                return other.costHint();
+            }
+
+            @Override
+            public double passRateHint() {
+                return 1.0 - other.passRateHint();
+            }
+
+            @Override
+            public Set<HolidayCalendar> calendars() {
+                return other.calendars();
+            }
+
+            @Override
+            public String describe() {
+                final String negated = other.describe();
+                return negated == null ? null : "not(" + negated + ")";
+            }
+        };
+    }
+
+    /**
+     * Combines filters so that a day must pass all of them.
+     * <p>
+     * The order filters are tried in is not the order given here: the composite
+     * samples how long each one takes and how often it rejects a day, and
+     * periodically moves the cheapest, most decisive ones to the front. The
+     * answer never depends on that order, as long as your filters don't have
+     * side effects.
+     *
+     * @param filters - the filters which must all apply
+     *
+     * @return the combined filter.
+     */
+    static PolicyFilter and(PolicyFilter... filters) {
+        return CompositeFilter.allOf(filters);
+    }
+
+    /**
+     * Combines filters so that a day must pass at least one of them.
+     * <p>
+     * Like {@link #and(PolicyFilter...)}, the children are re-ordered at runtime
+     * so that those most likely to accept a day cheaply are tried first.
+     *
+     * @param filters - the filters of which at least one must apply
+     *
+     * @return the combined filter.
+     */
+    static PolicyFilter or(PolicyFilter... filters) {
+        return CompositeFilter.anyOf(filters);
     }
 }
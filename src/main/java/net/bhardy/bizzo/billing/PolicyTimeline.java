@@ -0,0 +1,302 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing;
+
+import java.time.LocalDate;
+import java.time.Period;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A billing policy that changes over time, e.g. weekly until March and monthly
+ * on the 1st after that. It's made of segments, each a policy and the day it
+ * takes effect, and runs until the next segment takes over.
+ * <p>
+ * A due date belongs to the segment in effect on the day it fell due before any
+ * filter moved it. So if a filter moves a segment's due date forward past the day
+ * the next segment takes effect (NEXT_DAY), the bill still falls due, since it was
+ * incurred under the old policy. Due dates that a new segment's filter moves back
+ * before the day it took effect (PREVIOUS_DAY) are dropped, the same way
+ * upcomingDueDates() drops them before the day you start from.
+ * <p>
+ * Segments are kept as a sorted array of epoch days alongside an array of
+ * policies, so finding the one in effect on a day is a binary search. Like
+ * isDueOn() on a filtered policy, this assumes a filter never moves a due date
+ * by more than a cycle or so.
+ * <pre>
+ *     BillingPolicy policy = PolicyTimeline.builder()
+ *             .from(signUp, BillingPolicy.builder().weeklyOnDay(MONDAY).build())
+ *             .from(upgrade, BillingPolicy.builder().monthlyOnDay(1).build())
+ *             .build();
+ * </pre>
+ */
+public final class PolicyTimeline implements BillingPolicy {
+    private static final int MARGIN_CYCLES = 2;
+    private static final int DAYS_PER_MONTH = 31;
+
+    private final int[] effectiveFrom;
+    private final BillingPolicy[] policies;
+    private final int[] margins;
+
+    private PolicyTimeline(int[] effectiveFrom, BillingPolicy[] policies) {
+        this.effectiveFrom = effectiveFrom;
+        this.policies = policies;
+        this.margins = new int[policies.length];
+        for (int i = 0; i < policies.length; i++) {
+            final int previous = i > 0 ? cycleDays(policies[i - 1]) : 0;
+            margins[i] = MARGIN_CYCLES * Math.max(previous, cycleDays(policies[i]));
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @param day - the day in question
+     *
+     * @return the policy in effect on that day, or nothing if it's before the
+     * first segment.
+     */
+    public Optional<BillingPolicy> policyOn(LocalDate day) {
+        final int segment = segmentOf(day.toEpochDay());
+        return segment < 0 ? Optional.empty() : Optional.of(policies[segment]);
+    }
+
+    /**
+     * @return how many segments this timeline has.
+     */
+    public int segments() {
+        return policies.length;
+    }
+
+    @Override
+    public boolean isDueOn(LocalDate day) {
+        final long epochDay = day.toEpochDay();
+        final int segment = segmentOf(epochDay);
+        if (segment < 0) {
+            return false;
+        }
+        if (epochDay >= (long) effectiveFrom[segment] + margins[segment]) {
+            return policies[segment].isDueOn(day);
+        }
+        // close to a change of policy, where dates may have been carried over or dropped
+        return upcomingDueDates(day).iterator().next().equals(day);
+    }
+
+    @Override
+    public Stream<LocalDate> upcomingDueDates(LocalDate day) {
+        return StreamSupport.stream(new DueDates(day.toEpochDay(), Long.MAX_VALUE), false);
+    }
+
+    @Override
+    public Stream<LocalDate> dueDatesStartedBefore(LocalDate day, LocalDate cutOff) {
+        return StreamSupport.stream(new DueDates(day.toEpochDay(), cutOff.toEpochDay()), false);
+    }
+
+    /**
+     * @return the longest cycle of any segment.
+     */
+    @Override
+    public CycleType getCycleType() {
+        CycleType longest = policies[0].getCycleType();
+        for (BillingPolicy policy : policies) {
+            if (policy.getCycleType().compareTo(longest) > 0) {
+                longest = policy.getCycleType();
+            }
+        }
+        return longest;
+    }
+
+    @Override
+    public Set<HolidayCalendar> calendars() {
+        final Set<HolidayCalendar> calendars = new HashSet<>();
+        for (BillingPolicy policy : policies) {
+            calendars.addAll(policy.calendars());
+        }
+        return Collections.unmodifiableSet(calendars);
+    }
+
+    @Override
+    public String describe() {
+        final StringBuilder description = new StringBuilder("timeline(");
+        for (int i = 0; i < policies.length; i++) {
+            if (i > 0) {
+                description.append(',');
+            }
+            final String described = policies[i].describe();
+            if (described == null) {
+                return null;
+            }
+            description.append(LocalDate.ofEpochDay(effectiveFrom[i])).append(':').append(described);
+        }
+        return description.append(')').toString();
+    }
+
+    /**
+     * @return the index of the segment in effect on the day, or -1 if none is.
+     */
+    private int segmentOf(long epochDay) {
+        if (epochDay < effectiveFrom[0]) {
+            return -1;
+        }
+        if (epochDay > Integer.MAX_VALUE) {
+            return policies.length - 1;
+        }
+        final int found = Arrays.binarySearch(effectiveFrom, (int) epochDay);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    private static int cycleDays(BillingPolicy policy) {
+        final Period period = policy.getCycleType().getPeriod();
+        return Math.toIntExact(period.toTotalMonths() * DAYS_PER_MONTH + period.getDays());
+    }
+
+    /**
+     * Walks the segments in order, streaming each policy's due dates for the
+     * cycles in its own stretch of days. Dates a policy moves past the end of its
+     * stretch are held back in carried until the next segment's dates catch up
+     * with them. Nothing is streamed for cycles from the day until onwards.
+     */
+    private final class DueDates extends Spliterators.AbstractSpliterator<LocalDate> {
+        private final TreeSet<LocalDate> carried = new TreeSet<>();
+        private final long until;
+        private int segment;
+        private Iterator<LocalDate> dates;
+        private long end;
+        private LocalDate peeked;
+        private long floor;
+
+        DueDates(long startEpochDay, long until) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL);
+            this.until = until;
+            this.floor = startEpochDay;
+            final int current = segmentOf(startEpochDay);
+            if (current < 0) {
+                open(0, effectiveFrom[0]);
+            } else if (current > 0 && startEpochDay < (long) effectiveFrom[current] + margins[current]) {
+                // start in the previous segment, in case it carries dates over into this one
+                open(current - 1, Math.max(effectiveFrom[current - 1], effectiveFrom[current] - margins[current]));
+            } else {
+                open(current, Math.max(effectiveFrom[current], startEpochDay - margins[current]));
+            }
+        }
+
+        private void open(int newSegment, long fromEpochDay) {
+            segment = newSegment;
+            end = segment + 1 < policies.length ? Math.min(effectiveFrom[segment + 1], until) : until;
+            final LocalDate from = LocalDate.ofEpochDay(fromEpochDay);
+            dates = end == Long.MAX_VALUE
+                    ? policies[segment].upcomingDueDates(from).iterator()
+                    : policies[segment].dueDatesStartedBefore(from, LocalDate.ofEpochDay(end)).iterator();
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super LocalDate> action) {
+            while (true) {
+                if (peeked == null) {
+                    peeked = nextInSegment();
+                }
+                final LocalDate next;
+                if (!carried.isEmpty() && (peeked == null || !carried.first().isAfter(peeked))) {
+                    next = carried.pollFirst();
+                } else if (peeked != null) {
+                    next = peeked;
+                    peeked = null;
+                } else {
+                    return false;
+                }
+                if (next.toEpochDay() >= floor) {
+                    floor = next.toEpochDay() + 1;
+                    action.accept(next);
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return the next date in the segments' own stretches, or null once the
+         * cycles before until have all been streamed.
+         */
+        private LocalDate nextInSegment() {
+            while (true) {
+                if (dates.hasNext()) {
+                    final LocalDate date = dates.next();
+                    if (date.toEpochDay() < end) {
+                        return date;
+                    }
+                    carried.add(date);
+                } else if (end < until) {
+                    open(segment + 1, end);
+                } else {
+                    return null;
+                }
+            }
+        }
+    }
+
+    public static final class Builder {
+        private final List<LocalDate> effectiveFrom = new ArrayList<>();
+        private final List<BillingPolicy> policies = new ArrayList<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Add a segment. Segments must be added in order.
+         *
+         * @param day - the day the policy takes effect
+         * @param policy - the policy
+         *
+         * @return this builder.
+         */
+        public Builder from(LocalDate day, BillingPolicy policy) {
+            if (policy == null) {
+                throw new IllegalArgumentException("policy must not be null");
+            }
+            if (!effectiveFrom.isEmpty() && !day.isAfter(effectiveFrom.get(effectiveFrom.size() - 1))) {
+                throw new IllegalArgumentException("segment from " + day + " must come after "
+                        + effectiveFrom.get(effectiveFrom.size() - 1));
+            }
+            effectiveFrom.add(day);
+            policies.add(policy);
+            return this;
+        }
+
+        public PolicyTimeline build() {
+            if (policies.isEmpty()) {
+                throw new IllegalArgumentException("a timeline needs at least one segment");
+            }
+            final int[] days = new int[effectiveFrom.size()];
+            for (int i = 0; i < days.length; i++) {
+                days[i] = Math.toIntExact(effectiveFrom.get(i).toEpochDay());
+            }
+            return new PolicyTimeline(days, policies.toArray(new BillingPolicy[0]));
+        }
+    }
+}
@@ -16,14 +16,23 @@
 package net.bhardy.bizzo.billing.impl;
 
 import net.bhardy.bizzo.billing.ActionChoice;
+import net.bhardy.bizzo.billing.BillingPeriod;
 import net.bhardy.bizzo.billing.BillingPolicy;
 import net.bhardy.bizzo.billing.CycleType;
 import net.bhardy.bizzo.billing.FilterOption;
+import net.bhardy.bizzo.billing.HolidayCalendar;
 import net.bhardy.bizzo.billing.PolicyFilter;
+import net.bhardy.bizzo.billing.metrics.PolicyMetrics;
 
 import java.time.LocalDate;
 import java.time.Period;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Stream;
 
 /**
@@ -35,40 +44,181 @@ final class ActionChoiceBuilder implements ActionChoice {
     private final PolicyBuilderImpl policyBuilder;
     private final BillingPolicy underlyingPolicy;
     private final PolicyFilter filter;
+    private final PolicyMetrics metrics;
+    private final boolean instrumented;
 
     ActionChoiceBuilder(PolicyBuilderImpl policyBuilder, BillingPolicy underlyingPolicy, PolicyFilter filter) {
         this.policyBuilder = policyBuilder;
         this.underlyingPolicy = underlyingPolicy;
-        this.filter = filter;
+        this.metrics = policyBuilder.getMetrics();
+        this.instrumented = metrics.isEnabled();
+        this.filter = instrumented ? counting(filter) : filter;
+    }
+
+    /**
+     * Counts evaluations, and passes everything else straight through, so hints,
+     * calendars and descriptions are whatever the filter says at the time.
+     */
+    private PolicyFilter counting(PolicyFilter uncounted) {
+        return new PolicyFilter() {
+            @Override
+            public boolean applies(LocalDate today) {
+                metrics.increment(PolicyMetrics.Counter.FILTER_EVALUATIONS, 1);
+                return uncounted.applies(today);
+            }
+
+            @Override
+            public double costHint() {
+                return uncounted.costHint();
+            }
+
+            @Override
+            public double passRateHint() {
+                return uncounted.passRateHint();
+            }
+
+            @Override
+            public Set<HolidayCalendar> calendars() {
+                return uncounted.calendars();
+            }
+
+            @Override
+            public String describe() {
+                return uncounted.describe();
+            }
+        };
     }
 
     @Override
     public FilterOption action(Kind actionKind) {
         BillingPolicy layered = new BillingPolicy() {
             private static final int RANGE = 12;
+            private static final long DENSE_SPAN_PER_DAY = 31;
+
+            private Period howFarBack() {
+                return underlyingPolicy.getCycleType().getPeriod().multipliedBy(RANGE);
+            }
 
             @Override
             public boolean isDueOn(final LocalDate today) {
-                final Period howFarBack = underlyingPolicy.getCycleType().getPeriod().multipliedBy(RANGE);
-                final LocalDate jumpBack = today.minus(howFarBack);
-                return upcomingDueDates(jumpBack).limit(RANGE * 2L).anyMatch(today::equals);
+                final LocalDate jumpBack = today.minus(howFarBack());
+                if (!instrumented) {
+                    return upcomingDueDates(jumpBack).limit(RANGE * 2L).anyMatch(today::equals);
+                }
+                final LongAdder replayed = new LongAdder();
+                final boolean due = upcomingDueDates(jumpBack).limit(RANGE * 2L)
+                        .peek(date -> replayed.increment())
+                        .anyMatch(today::equals);
+                metrics.record(PolicyMetrics.Histogram.IS_DUE_ON_REPLAYED, replayed.sum());
+                return due;
+            }
+
+            /**
+             * Replays once from before the first day, instead of once per day.
+             */
+            @Override
+            public void isDueOn(LocalDate from, boolean[] into) {
+                Arrays.fill(into, false);
+                if (into.length == 0) {
+                    return;
+                }
+                final long first = from.toEpochDay();
+                final Iterator<LocalDate> replay = upcomingDueDates(from.minus(howFarBack())).iterator();
+                while (replay.hasNext()) {
+                    final long index = replay.next().toEpochDay() - first;
+                    if (index >= into.length) {
+                        break;
+                    }
+                    if (index >= 0) {
+                        into[(int) index] = true;
+                    }
+                }
+            }
+
+            /**
+             * Steps back through the underlying policy's periods, which is cheap, to
+             * one of its due dates a couple of cycles before the day, and searches
+             * forward from there. If the filter skipped everything in between, it
+             * steps back further.
+             */
+            @Override
+            public long periodContaining(long epochDay) {
+                long from = epochDay;
+                int cyclesBack = 0;
+                for (int target = 2; target <= MAX_PERIOD_SEARCH_CYCLES; target *= 2) {
+                    for (; cyclesBack < target; cyclesBack++) {
+                        from = BillingPeriod.startOf(underlyingPolicy.periodContaining(from - 1));
+                    }
+                    final long period = BillingPeriod.scan(this, LocalDate.ofEpochDay(from), epochDay);
+                    if (period != BillingPeriod.NOT_FOUND) {
+                        return period;
+                    }
+                }
+                throw new IllegalStateException("not due in the " + MAX_PERIOD_SEARCH_CYCLES
+                        + " cycles before " + LocalDate.ofEpochDay(epochDay));
+            }
+
+            /**
+             * Answers for the whole span of the days asked about in one replay, unless
+             * they're so spread out that checking them one by one is cheaper.
+             */
+            @Override
+            public void isDueOn(int[] epochDays, boolean[] into) {
+                PolicyBuilderImpl.checkRoom(epochDays, into);
+                if (epochDays.length == 0) {
+                    return;
+                }
+                final int earliest = Arrays.stream(epochDays).min().getAsInt();
+                final int latest = Arrays.stream(epochDays).max().getAsInt();
+                final long span = (long) latest - earliest + 1;
+                if (span > epochDays.length * DENSE_SPAN_PER_DAY || span > Integer.MAX_VALUE) {
+                    BillingPolicy.super.isDueOn(epochDays, into);
+                    return;
+                }
+                final boolean[] dense = new boolean[(int) span];
+                isDueOn(LocalDate.ofEpochDay(earliest), dense);
+                for (int i = 0; i < epochDays.length; i++) {
+                    into[i] = dense[epochDays[i] - earliest];
+                }
             }
 
             @Override
             public Stream<LocalDate> upcomingDueDates(LocalDate day) {
-                return filterDates(day, actionKind);
+                return filterDates(underlyingPolicy.upcomingDueDates(day), day, actionKind);
+            }
+
+            @Override
+            public Stream<LocalDate> dueDatesStartedBefore(LocalDate day, LocalDate cutOff) {
+                return filterDates(underlyingPolicy.dueDatesStartedBefore(day, cutOff), day, actionKind);
             }
 
             @Override
             public CycleType getCycleType() {
                 return underlyingPolicy.getCycleType();
             }
+
+            @Override
+            public Set<HolidayCalendar> calendars() {
+                // worked out each time, as a filter from a registry can change which it uses
+                final Set<HolidayCalendar> calendars = new HashSet<>(underlyingPolicy.calendars());
+                calendars.addAll(filter.calendars());
+                return Collections.unmodifiableSet(calendars);
+            }
+
+            @Override
+            public String describe() {
+                final String underlying = underlyingPolicy.describe();
+                final String filtered = filter.describe();
+                if (underlying == null || filtered == null) {
+                    return null;
+                }
+                return underlying + ".filter(" + filtered + ").action(" + actionKind + ")";
+            }
         };
         return policyBuilder.buildFilterOption(layered);
     }
 
-    private Stream<LocalDate> filterDates(LocalDate startDay, final Kind actionKind) {
-        final Stream<LocalDate> considering = underlyingPolicy.upcomingDueDates(startDay);
+    private Stream<LocalDate> filterDates(Stream<LocalDate> considering, LocalDate startDay, final Kind actionKind) {
         if (actionKind == Kind.SKIP) {
             return considering.filter(filter::applies);
         }
@@ -100,22 +250,40 @@ final class ActionChoiceBuilder implements ActionChoice {
     }
 
     private LocalDate findNextFreeDate(LocalDate startingAt) {
+        final long started = instrumented ? System.nanoTime() : 0L;
         LocalDate now = startingAt;
+        long scanned = 1;
         while (!filter.applies(now)) {
             now = now.plusDays(1);
+            scanned++;
+        }
+        if (instrumented) {
+            recordScan(PolicyMetrics.Histogram.NEXT_FREE_DATE_SCAN_DAYS, started, scanned);
         }
         return now;
     }
 
     private LocalDate findPreviousFreeDate(LocalDate starting, LocalDate notBefore) {
         assert (starting.isAfter(notBefore));
+        final long started = instrumented ? System.nanoTime() : 0L;
         LocalDate now = starting;
+        long scanned = 1;
         while (!filter.applies(now)) {
             now = now.minusDays(1);
             if (!now.isAfter(notBefore)) {
-                return null;
+                now = null;
+                break;
             }
+            scanned++;
+        }
+        if (instrumented) {
+            recordScan(PolicyMetrics.Histogram.PREVIOUS_FREE_DATE_SCAN_DAYS, started, scanned);
         }
         return now;
     }
+
+    private void recordScan(PolicyMetrics.Histogram daysHistogram, long startedNanos, long days) {
+        metrics.record(PolicyMetrics.Histogram.FREE_DATE_SCAN_NANOS, System.nanoTime() - startedNanos);
+        metrics.record(daysHistogram, days);
+    }
 }
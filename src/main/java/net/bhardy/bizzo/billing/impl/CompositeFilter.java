@@ -0,0 +1,228 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.impl;
+
+import net.bhardy.bizzo.billing.HolidayCalendar;
+import net.bhardy.bizzo.billing.PolicyFilter;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Internal implementation of the and() and or() filters.
+ * <p>
+ * Children start out ordered by their cost and pass rate hints. One call in
+ * SAMPLE_EVERY evaluates every child, timing each one and counting how often it
+ * passes, and every REORDER_EVERY samples the children are re-ranked by the
+ * measured cost of reaching a decision. The ordering is published through a
+ * volatile array, so the unsampled path is a plain loop with no shared writes.
+ *
+ * @see PolicyFilter#and(PolicyFilter...)
+ * @see PolicyFilter#or(PolicyFilter...)
+ */
+public final class CompositeFilter implements PolicyFilter {
+    private static final int SAMPLE_EVERY = 64;
+    private static final int REORDER_EVERY = 256;
+    private static final long MIN_SAMPLES = 32;
+    private static final double NEVER_DECIDES = 1e-6;
+
+    /**
+     * true for and(), where the first failing child decides. false for or(),
+     * where the first passing child decides.
+     */
+    private final boolean conjunction;
+    private final Child[] children;
+    private final AtomicInteger samplesUntilReorder = new AtomicInteger(REORDER_EVERY);
+    private volatile Child[] order;
+
+    private CompositeFilter(boolean conjunction, PolicyFilter[] filters) {
+        if (filters.length == 0) {
+            throw new IllegalArgumentException("at least one filter is required");
+        }
+        this.conjunction = conjunction;
+        this.children = new Child[filters.length];
+        for (int i = 0; i < filters.length; i++) {
+            if (filters[i] == null) {
+                throw new IllegalArgumentException("filter " + i + " is null");
+            }
+            children[i] = new Child(i, filters[i]);
+        }
+        this.order = rank(false);
+    }
+
+    public static CompositeFilter allOf(PolicyFilter... filters) {
+        return new CompositeFilter(true, filters);
+    }
+
+    public static CompositeFilter anyOf(PolicyFilter... filters) {
+        return new CompositeFilter(false, filters);
+    }
+
+    @Override
+    public boolean applies(LocalDate today) {
+        final Child[] current = order;
+        if (ThreadLocalRandom.current().nextInt(SAMPLE_EVERY) == 0) {
+            return appliesSampled(today, current);
+        }
+        for (Child child : current) {
+            if (child.filter.applies(today) != conjunction) {
+                return !conjunction;
+            }
+        }
+        return conjunction;
+    }
+
+    /**
+     * Evaluates every child, so that each one's pass rate is measured without
+     * being skewed by whichever children happen to run before it.
+     */
+    private boolean appliesSampled(LocalDate today, Child[] current) {
+        boolean decided = false;
+        for (Child child : current) {
+            final long started = System.nanoTime();
+            final boolean passed = child.filter.applies(today);
+            child.record(System.nanoTime() - started, passed);
+            decided |= passed != conjunction;
+        }
+        if (samplesUntilReorder.decrementAndGet() == 0) {
+            samplesUntilReorder.set(REORDER_EVERY);
+            order = rank(true);
+        }
+        return decided != conjunction;
+    }
+
+    /**
+     * Other threads may be recording samples while this runs, so each child's cost
+     * is read once up front; the sort then compares fixed numbers.
+     */
+    private Child[] rank(boolean measured) {
+        final boolean useMeasurements = measured
+                && Arrays.stream(children).allMatch(child -> child.evaluations.sum() >= MIN_SAMPLES);
+        final double[] costs = new double[children.length];
+        for (Child child : children) {
+            costs[child.index] = child.costPerDecision(useMeasurements);
+        }
+        final Comparator<Child> byExpectedCost = Comparator
+                .comparingDouble((Child child) -> costs[child.index])
+                .thenComparingInt(child -> child.index);
+        final Child[] ranked = children.clone();
+        Arrays.sort(ranked, byExpectedCost);
+        return ranked;
+    }
+
+    /**
+     * @return the children in the order they are currently tried, for diagnostics.
+     */
+    public PolicyFilter[] currentOrder() {
+        return Arrays.stream(order).map(child -> child.filter).toArray(PolicyFilter[]::new);
+    }
+
+    @Override
+    public double costHint() {
+        return Arrays.stream(children).mapToDouble(child -> child.filter.costHint()).sum();
+    }
+
+    /**
+     * Assumes the children are independent, which is the best we can do without
+     * measuring them together.
+     */
+    @Override
+    public double passRateHint() {
+        double product = 1.0;
+        for (Child child : children) {
+            final double passRate = child.filter.passRateHint();
+            product *= conjunction ? passRate : 1.0 - passRate;
+        }
+        return conjunction ? product : 1.0 - product;
+    }
+
+    /**
+     * Worked out each time, as a child from a registry can change which it uses.
+     */
+    @Override
+    public Set<HolidayCalendar> calendars() {
+        final Set<HolidayCalendar> used = new HashSet<>();
+        for (Child child : children) {
+            used.addAll(child.filter.calendars());
+        }
+        return Collections.unmodifiableSet(used);
+    }
+
+    /**
+     * Children are described in the order they were given, not the order they're
+     * currently tried in, so the description doesn't change as they're re-ranked.
+     * If any child can't be described, neither can the composite.
+     */
+    @Override
+    public String describe() {
+        final String[] described = new String[children.length];
+        for (Child child : children) {
+            described[child.index] = child.filter.describe();
+            if (described[child.index] == null) {
+                return null;
+            }
+        }
+        return Arrays.stream(described).collect(Collectors.joining(",", conjunction ? "and(" : "or(", ")"));
+    }
+
+    private final class Child {
+        private final int index;
+        private final PolicyFilter filter;
+        private final LongAdder evaluations = new LongAdder();
+        private final LongAdder passes = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        Child(int index, PolicyFilter filter) {
+            this.index = index;
+            this.filter = filter;
+        }
+
+        void record(long elapsed, boolean passed) {
+            evaluations.increment();
+            nanos.add(elapsed);
+            if (passed) {
+                passes.increment();
+            }
+        }
+
+        /**
+         * The expected cost of calling this child divided by the chance that it
+         * ends the evaluation, i.e. fails for and() or passes for or().
+         */
+        double costPerDecision(boolean useMeasurements) {
+            final double cost;
+            final double passRate;
+            if (useMeasurements) {
+                final double count = evaluations.sum();
+                cost = nanos.sum() / count;
+                passRate = passes.sum() / count;
+            } else {
+                cost = filter.costHint();
+                passRate = filter.passRateHint();
+            }
+            final double decisive = conjunction ? 1.0 - passRate : passRate;
+            return cost / Math.max(decisive, NEVER_DECIDES);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.impl;
+
+import net.bhardy.bizzo.billing.BillingPeriod;
+import net.bhardy.bizzo.billing.BillingPolicy;
+import net.bhardy.bizzo.billing.CycleType;
+import net.bhardy.bizzo.billing.metrics.PolicyMetrics;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * A policy that falls due every so many days, counting from an anchor day.
+ * Daily, weekly and biweekly policies are all this, with different periods.
+ * <p>
+ * Everything is worked out from epoch days, so checking a day is a modulus
+ * and generating the next due date is an addition.
+ */
+final class DayCyclePolicy implements BillingPolicy {
+    private final CycleType cycleType;
+    private final long periodDays;
+    private final long anchorEpochDay;
+    private final String description;
+    private final PolicyMetrics metrics;
+
+    DayCyclePolicy(CycleType cycleType, long anchorEpochDay, String description, PolicyMetrics metrics) {
+        if (cycleType.getPeriod().toTotalMonths() != 0) {
+            throw new IllegalArgumentException(cycleType + " is not a cycle of days");
+        }
+        this.cycleType = cycleType;
+        this.periodDays = cycleType.getPeriod().getDays();
+        this.anchorEpochDay = anchorEpochDay;
+        this.description = description;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean isDueOn(LocalDate day) {
+        return isDueOn(day.toEpochDay());
+    }
+
+    private boolean isDueOn(long epochDay) {
+        return Math.floorMod(epochDay - anchorEpochDay, periodDays) == 0;
+    }
+
+    @Override
+    public void isDueOn(LocalDate from, boolean[] into) {
+        Arrays.fill(into, false);
+        for (long i = firstDueOnOrAfter(from.toEpochDay()) - from.toEpochDay(); i < into.length; i += periodDays) {
+            into[(int) i] = true;
+        }
+    }
+
+    @Override
+    public void isDueOn(int[] epochDays, boolean[] into) {
+        PolicyBuilderImpl.checkRoom(epochDays, into);
+        for (int i = 0; i < epochDays.length; i++) {
+            into[i] = isDueOn(epochDays[i]);
+        }
+    }
+
+    @Override
+    public long periodContaining(long epochDay) {
+        final long start = epochDay - Math.floorMod(epochDay - anchorEpochDay, periodDays);
+        return BillingPeriod.pack(start, start + periodDays);
+    }
+
+    @Override
+    public Stream<LocalDate> upcomingDueDates(LocalDate day) {
+        return PolicyBuilderImpl.counted(metrics,
+                LongStream.iterate(firstDueOnOrAfter(day.toEpochDay()), epochDay -> epochDay + periodDays)
+                        .mapToObj(LocalDate::ofEpochDay));
+    }
+
+    private long firstDueOnOrAfter(long epochDay) {
+        return epochDay + Math.floorMod(anchorEpochDay - epochDay, periodDays);
+    }
+
+    @Override
+    public CycleType getCycleType() {
+        return cycleType;
+    }
+
+    @Override
+    public String describe() {
+        return description;
+    }
+}
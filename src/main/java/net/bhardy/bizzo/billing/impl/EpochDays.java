@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.impl;
+
+/**
+ * Conversions between epoch days and calendar dates in plain arithmetic, for
+ * hot paths that shouldn't create a LocalDate per call.
+ * <p>
+ * These use the proleptic Gregorian calendar, as LocalDate does, counted in
+ * 400 year eras of 146097 days which start on the 1st of March, so the leap
+ * day comes last.
+ */
+final class EpochDays {
+    private static final long DAYS_PER_ERA = 146_097;
+    private static final long YEARS_PER_ERA = 400;
+    private static final long MARCH_1ST_0000 = 719_468;
+    private static final int MONTHS_PER_YEAR = 12;
+
+    private EpochDays() {
+    }
+
+    /**
+     * @return the epoch day of a date, as LocalDate.of(year, month, dayOfMonth).toEpochDay().
+     */
+    static long of(long year, int month, int dayOfMonth) {
+        final long marchYear = month <= 2 ? year - 1 : year;
+        final long era = Math.floorDiv(marchYear, YEARS_PER_ERA);
+        final long yearOfEra = marchYear - era * YEARS_PER_ERA;
+        final int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + dayOfMonth - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * DAYS_PER_ERA + dayOfEra - MARCH_1ST_0000;
+    }
+
+    /**
+     * @return the epoch month, i.e. year * 12 + month - 1, that an epoch day falls in.
+     */
+    static long epochMonthOf(long epochDay) {
+        final long shifted = epochDay + MARCH_1ST_0000;
+        final long era = Math.floorDiv(shifted, DAYS_PER_ERA);
+        final long dayOfEra = shifted - era * DAYS_PER_ERA;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146_096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final long marchMonth = (5 * dayOfYear + 2) / 153;
+        final long month = marchMonth < 10 ? marchMonth + 3 : marchMonth - 9;
+        final long year = yearOfEra + era * YEARS_PER_ERA + (month <= 2 ? 1 : 0);
+        return year * MONTHS_PER_YEAR + month - 1;
+    }
+}
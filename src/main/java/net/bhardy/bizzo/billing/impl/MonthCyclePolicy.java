@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.impl;
+
+import net.bhardy.bizzo.billing.BillingPeriod;
+import net.bhardy.bizzo.billing.BillingPolicy;
+import net.bhardy.bizzo.billing.CycleType;
+import net.bhardy.bizzo.billing.metrics.PolicyMetrics;
+
+import java.time.LocalDate;
+import java.time.Month;
+import java.time.chrono.IsoChronology;
+import java.util.Arrays;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * A policy that falls due on a day of the month, every so many months,
+ * counting from an anchor month. Monthly through annual policies are all this.
+ * <p>
+ * If the month is too short for the day, the bill falls due on the last day of
+ * the month instead, so day 31 means "the last day of the month".
+ * <p>
+ * Months are counted as epoch months, i.e. year * 12 + month - 1, so checking a
+ * day is a modulus and a comparison, and generating the next due date is an
+ * addition, rather than repeated calls to plusMonths().
+ */
+final class MonthCyclePolicy implements BillingPolicy {
+    static final int LAST_DAY = 31;
+    private static final int MONTHS_PER_YEAR = 12;
+
+    private final CycleType cycleType;
+    private final long periodMonths;
+    private final long anchorEpochMonth;
+    private final int dayOfMonth;
+    private final String description;
+    private final PolicyMetrics metrics;
+
+    MonthCyclePolicy(CycleType cycleType, long anchorEpochMonth, int dayOfMonth, String description,
+                     PolicyMetrics metrics) {
+        if (cycleType.getPeriod().toTotalMonths() == 0) {
+            throw new IllegalArgumentException(cycleType + " is not a cycle of months");
+        }
+        if (dayOfMonth < 1 || dayOfMonth > LAST_DAY) {
+            throw new IllegalArgumentException("not a day of the month: " + dayOfMonth);
+        }
+        this.cycleType = cycleType;
+        this.periodMonths = cycleType.getPeriod().toTotalMonths();
+        this.anchorEpochMonth = anchorEpochMonth;
+        this.dayOfMonth = dayOfMonth;
+        this.description = description;
+        this.metrics = metrics;
+    }
+
+    static long epochMonth(LocalDate day) {
+        return day.getYear() * (long) MONTHS_PER_YEAR + day.getMonthValue() - 1;
+    }
+
+    static long epochMonth(long epochDay) {
+        return EpochDays.epochMonthOf(epochDay);
+    }
+
+    @Override
+    public boolean isDueOn(LocalDate day) {
+        final long epochMonth = epochMonth(day);
+        return Math.floorMod(epochMonth - anchorEpochMonth, periodMonths) == 0
+                && day.getDayOfMonth() == dueDayOfMonth(epochMonth);
+    }
+
+    private boolean isDueOn(long epochDay) {
+        final long epochMonth = epochMonth(epochDay);
+        return Math.floorMod(epochMonth - anchorEpochMonth, periodMonths) == 0
+                && epochDay == dueEpochDayIn(epochMonth);
+    }
+
+    @Override
+    public void isDueOn(int[] epochDays, boolean[] into) {
+        PolicyBuilderImpl.checkRoom(epochDays, into);
+        for (int i = 0; i < epochDays.length; i++) {
+            into[i] = isDueOn(epochDays[i]);
+        }
+    }
+
+    @Override
+    public void isDueOn(LocalDate from, boolean[] into) {
+        Arrays.fill(into, false);
+        if (into.length == 0) {
+            return;
+        }
+        final long first = from.toEpochDay();
+        final long lastMonth = epochMonth(from.plusDays(into.length - 1L));
+        for (long month = alignedOnOrAfter(epochMonth(from)); month <= lastMonth; month += periodMonths) {
+            final long index = dueEpochDayIn(month) - first;
+            if (index >= 0 && index < into.length) {
+                into[(int) index] = true;
+            }
+        }
+    }
+
+    @Override
+    public long periodContaining(long epochDay) {
+        final long month = epochMonth(epochDay);
+        final long aligned = month - Math.floorMod(month - anchorEpochMonth, periodMonths);
+        final long due = dueEpochDayIn(aligned);
+        if (epochDay >= due) {
+            return BillingPeriod.pack(due, dueEpochDayIn(aligned + periodMonths));
+        }
+        return BillingPeriod.pack(dueEpochDayIn(aligned - periodMonths), due);
+    }
+
+    @Override
+    public Stream<LocalDate> upcomingDueDates(LocalDate day) {
+        long month = alignedOnOrAfter(epochMonth(day));
+        if (month == epochMonth(day) && day.getDayOfMonth() > dueDayOfMonth(month)) {
+            month += periodMonths;
+        }
+        return PolicyBuilderImpl.counted(metrics,
+                LongStream.iterate(month, epochMonth -> epochMonth + periodMonths).mapToObj(this::dueDateIn));
+    }
+
+    private long alignedOnOrAfter(long epochMonth) {
+        return epochMonth + Math.floorMod(anchorEpochMonth - epochMonth, periodMonths);
+    }
+
+    private int dueDayOfMonth(long epochMonth) {
+        final long year = Math.floorDiv(epochMonth, MONTHS_PER_YEAR);
+        final Month month = Month.of((int) Math.floorMod(epochMonth, MONTHS_PER_YEAR) + 1);
+        return Math.min(dayOfMonth, month.length(IsoChronology.INSTANCE.isLeapYear(year)));
+    }
+
+    private long dueEpochDayIn(long epochMonth) {
+        return EpochDays.of(Math.floorDiv(epochMonth, MONTHS_PER_YEAR),
+                (int) Math.floorMod(epochMonth, MONTHS_PER_YEAR) + 1,
+                dueDayOfMonth(epochMonth));
+    }
+
+    private LocalDate dueDateIn(long epochMonth) {
+        return LocalDate.of(
+                Math.toIntExact(Math.floorDiv(epochMonth, MONTHS_PER_YEAR)),
+                (int) Math.floorMod(epochMonth, MONTHS_PER_YEAR) + 1,
+                dueDayOfMonth(epochMonth));
+    }
+
+    @Override
+    public CycleType getCycleType() {
+        return cycleType;
+    }
+
+    @Override
+    public String describe() {
+        return description;
+    }
+}
@@ -19,12 +19,14 @@ import net.bhardy.bizzo.billing.ActionChoice;
 import net.bhardy.bizzo.billing.BillingPolicy;
 import net.bhardy.bizzo.billing.CycleType;
 import net.bhardy.bizzo.billing.FilterOption;
+import net.bhardy.bizzo.billing.FilterRegistry;
 import net.bhardy.bizzo.billing.PolicyBuilder;
 import net.bhardy.bizzo.billing.PolicyFilter;
+import net.bhardy.bizzo.billing.metrics.PolicyMetrics;
 
 import java.time.DayOfWeek;
 import java.time.LocalDate;
-import java.util.concurrent.atomic.AtomicReference;
+import java.time.YearMonth;
 import java.util.stream.Stream;
 
 /**
@@ -33,83 +35,104 @@ import java.util.stream.Stream;
  * @see net.bhardy.bizzo.billing.PolicyBuilder
  */
 public class PolicyBuilderImpl implements PolicyBuilder {
-    @Override
-    public FilterOption daily() {
-        BillingPolicy base = new BillingPolicy() {
+    private static final LocalDate EPOCH = LocalDate.ofEpochDay(0);
+    private static final int DAYS_PER_WEEK = 7;
 
-            @Override
-            public boolean isDueOn(LocalDate day) {
-                return true;
-            }
+    private final PolicyMetrics metrics;
+    private final FilterRegistry registry;
 
-            @Override
-            public Stream<LocalDate> upcomingDueDates(final LocalDate startingFrom) {
-                final AtomicReference<LocalDate> current = new AtomicReference<>(startingFrom);
-                return Stream.generate(() -> current.getAndUpdate(now -> now.plusDays(1)));
-            }
-
-            @Override
-            public CycleType getCycleType() {
-                return CycleType.DAILY;
-            }
-        };
+    public PolicyBuilderImpl() {
+        this(PolicyMetrics.DISABLED);
+    }
 
-        return buildFilterOption(base);
+    public PolicyBuilderImpl(PolicyMetrics metrics) {
+        this(metrics, null);
     }
 
-    private static final int DAYS_PER_WEEK = 7;
+    /**
+     * @param metrics - where policies report to
+     * @param registry - where filters named in filter(name) are found, or null if there isn't one
+     */
+    public PolicyBuilderImpl(PolicyMetrics metrics, FilterRegistry registry) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics must not be null, use PolicyMetrics.DISABLED");
+        }
+        this.metrics = metrics;
+        this.registry = registry;
+    }
 
     @Override
-    public FilterOption weeklyOnDay(DayOfWeek onWhichDay) {
-        BillingPolicy base = new BillingPolicy() {
+    public PolicyBuilder withMetrics(PolicyMetrics metrics) {
+        return new PolicyBuilderImpl(metrics, registry);
+    }
 
-            @Override
-            public boolean isDueOn(LocalDate day) {
-                return day.getDayOfWeek().equals(onWhichDay);
-            }
+    @Override
+    public PolicyBuilder withRegistry(FilterRegistry registry) {
+        if (registry == null) {
+            throw new IllegalArgumentException("registry must not be null");
+        }
+        return new PolicyBuilderImpl(metrics, registry);
+    }
 
-            @Override
-            public Stream<LocalDate> upcomingDueDates(final LocalDate fromDay) {
-                final DayOfWeek todayIsA = fromDay.getDayOfWeek();
-                final int daysTilNext = (onWhichDay.getValue() + DAYS_PER_WEEK - todayIsA.getValue()) % DAYS_PER_WEEK;
-                final LocalDate first = fromDay.plusDays(daysTilNext);
-                final AtomicReference<LocalDate> current = new AtomicReference<>(first);
-                return Stream.generate(() -> current.getAndUpdate(now -> now.plusWeeks(1)));
-            }
+    PolicyMetrics getMetrics() {
+        return metrics;
+    }
 
-            @Override
-            public CycleType getCycleType() {
-                return CycleType.WEEKLY;
-            }
-        };
+    @Override
+    public FilterOption daily() {
+        return buildFilterOption(new DayCyclePolicy(CycleType.DAILY, 0, "daily()", metrics));
+    }
 
-        return buildFilterOption(base);
+    @Override
+    public FilterOption weeklyOnDay(DayOfWeek onWhichDay) {
+        final long anchor = Math.floorMod(onWhichDay.getValue() - EPOCH.getDayOfWeek().getValue(), DAYS_PER_WEEK);
+        return buildFilterOption(new DayCyclePolicy(CycleType.WEEKLY, anchor,
+                "weeklyOnDay(" + onWhichDay + ")", metrics));
     }
 
     @Override
     public FilterOption monthlyOnDay(int dayOfMonth) {
-        BillingPolicy base = new BillingPolicy() {
-            @Override
-            public boolean isDueOn(LocalDate day) {
-                return day.getDayOfMonth() == dayOfMonth;
-            }
+        return buildFilterOption(new MonthCyclePolicy(CycleType.MONTHLY, 0, dayOfMonth,
+                "monthlyOnDay(" + dayOfMonth + ")", metrics));
+    }
 
-            @Override
-            public Stream<LocalDate> upcomingDueDates(final LocalDate fromDay) {
-                final int monthOffset = (fromDay.getDayOfMonth() > dayOfMonth) ? 1 : 0;
-                final LocalDate first = fromDay.withDayOfMonth(dayOfMonth).plusMonths(monthOffset);
-                final AtomicReference<LocalDate> current = new AtomicReference<>(first);
-                return Stream.generate(() -> current.getAndUpdate(now -> now.plusMonths(1)));
-            }
+    @Override
+    public FilterOption monthlyOnLastDay() {
+        return buildFilterOption(new MonthCyclePolicy(CycleType.MONTHLY, 0, MonthCyclePolicy.LAST_DAY,
+                "monthlyOnLastDay()", metrics));
+    }
 
-            @Override
-            public CycleType getCycleType() {
-                return CycleType.MONTHLY;
-            }
-        };
+    @Override
+    public FilterOption cycle(CycleType cycleType, LocalDate anchor) {
+        final String description = "cycle(" + cycleType + "," + anchor + ")";
+        if (cycleType.getPeriod().toTotalMonths() == 0) {
+            return buildFilterOption(new DayCyclePolicy(cycleType, anchor.toEpochDay(), description, metrics));
+        }
+        return buildFilterOption(new MonthCyclePolicy(cycleType, MonthCyclePolicy.epochMonth(anchor),
+                anchor.getDayOfMonth(), description, metrics));
+    }
+
+    @Override
+    public FilterOption cycleOnLastDayOfMonth(CycleType cycleType, YearMonth anchor) {
+        return buildFilterOption(new MonthCyclePolicy(cycleType, MonthCyclePolicy.epochMonth(anchor.atDay(1)),
+                MonthCyclePolicy.LAST_DAY, "cycleOnLastDayOfMonth(" + cycleType + "," + anchor + ")", metrics));
+    }
 
-        return buildFilterOption(base);
+    static void checkRoom(int[] epochDays, boolean[] into) {
+        if (into.length < epochDays.length) {
+            throw new IllegalArgumentException("need room for " + epochDays.length + " answers, got " + into.length);
+        }
+    }
 
+    /**
+     * Counts streams and the dates generated on them, if anyone is listening.
+     */
+    static Stream<LocalDate> counted(PolicyMetrics metrics, Stream<LocalDate> dates) {
+        if (!metrics.isEnabled()) {
+            return dates;
+        }
+        metrics.increment(PolicyMetrics.Counter.DUE_DATE_STREAMS, 1);
+        return dates.peek(date -> metrics.increment(PolicyMetrics.Counter.BASE_DATES_GENERATED, 1));
     }
 
     FilterOption buildFilterOption(BillingPolicy underlyingPolicy) {
@@ -123,6 +146,14 @@ public class PolicyBuilderImpl implements PolicyBuilder {
             public ActionChoice filter(PolicyFilter filter) {
                 return new ActionChoiceBuilder(PolicyBuilderImpl.this, underlyingPolicy, filter);
             }
+
+            @Override
+            public ActionChoice filter(String name) {
+                if (registry == null) {
+                    throw new IllegalStateException("no registry to find " + name + " in, use withRegistry()");
+                }
+                return filter(registry.ref(name));
+            }
         };
     }
 }
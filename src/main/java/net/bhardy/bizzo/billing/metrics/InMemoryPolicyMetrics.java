@@ -0,0 +1,181 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PolicyMetrics which simply keeps everything in memory, for tests, benchmarks
+ * and for exporting to whatever monitoring system you use.
+ * <p>
+ * Everything is kept in LongAdders, which stripe their updates across cells so
+ * that threads hammering the same counter don't contend with each other.
+ * Histograms use power of two buckets, which is coarse but cheap.
+ */
+public final class InMemoryPolicyMetrics implements PolicyMetrics {
+    private static final int BUCKETS = Long.SIZE + 1;
+
+    private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+    private final Map<Histogram, Recorder> histograms = new EnumMap<>(Histogram.class);
+
+    public InMemoryPolicyMetrics() {
+        for (Counter counter : Counter.values()) {
+            counters.put(counter, new LongAdder());
+        }
+        for (Histogram histogram : Histogram.values()) {
+            histograms.put(histogram, new Recorder());
+        }
+    }
+
+    @Override
+    public void increment(Counter counter, long amount) {
+        counters.get(counter).add(amount);
+    }
+
+    @Override
+    public void record(Histogram histogram, long value) {
+        histograms.get(histogram).record(value);
+    }
+
+    /**
+     * @param counter - which counter
+     *
+     * @return its current total.
+     */
+    public long count(Counter counter) {
+        return counters.get(counter).sum();
+    }
+
+    /**
+     * Take a look at a histogram. This isn't an atomic snapshot if other threads
+     * are still recording, but it's close enough for monitoring.
+     *
+     * @param histogram - which histogram
+     *
+     * @return a copy of its current state.
+     */
+    public Snapshot histogram(Histogram histogram) {
+        return histograms.get(histogram).snapshot();
+    }
+
+    /**
+     * Zero everything, e.g. between benchmark iterations.
+     */
+    public void reset() {
+        counters.values().forEach(LongAdder::reset);
+        histograms.values().forEach(Recorder::reset);
+    }
+
+    /**
+     * The state of a histogram at some moment.
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final long sum;
+        private final long max;
+        private final long[] buckets;
+
+        Snapshot(long count, long sum, long max, long[] buckets) {
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+            this.buckets = buckets;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0.0 : sum / (double) count;
+        }
+
+        /**
+         * Estimate a percentile. Since buckets are powers of two, the answer is the
+         * upper bound of the bucket the percentile falls in, capped at the maximum.
+         *
+         * @param fraction - e.g. 0.99 for the 99th percentile
+         *
+         * @return an upper bound for that percentile, or 0 if nothing was recorded.
+         */
+        public long percentile(double fraction) {
+            final long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += buckets[bucket];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(bucketUpperBound(bucket), max);
+                }
+            }
+            return max;
+        }
+
+        private static long bucketUpperBound(int bucket) {
+            return bucket >= Long.SIZE - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+        }
+    }
+
+    /**
+     * Bucket i holds values whose highest set bit is bit i - 1, so bucket 0 is
+     * just zero, bucket 1 is 1, bucket 2 is 2-3, bucket 3 is 4-7 and so on.
+     */
+    private static final class Recorder {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Recorder() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            buckets[Long.SIZE - Long.numberOfLeadingZeros(value)].increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        Snapshot snapshot() {
+            final long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+            return new Snapshot(count, sum.sum(), max.get(), counts);
+        }
+
+        void reset() {
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+            sum.reset();
+            max.reset();
+        }
+    }
+}
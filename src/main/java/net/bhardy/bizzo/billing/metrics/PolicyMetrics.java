@@ -0,0 +1,141 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.metrics;
+
+/**
+ * A place to report what billing policies are doing while they're evaluated,
+ * so you can see where the time in a slow billing run goes.
+ * <p>
+ * Hand one of these to PolicyBuilder.withMetrics() and every policy built from
+ * that builder will report to it. Implementations are called on hot paths from
+ * many threads at once, so they should be cheap and must be thread safe.
+ * <p>
+ * Policies built without metrics use {@link #DISABLED}, which they recognise
+ * and skip all the bookkeeping for, so instrumentation costs nothing unless
+ * you ask for it.
+ *
+ * @see InMemoryPolicyMetrics
+ */
+public interface PolicyMetrics {
+    enum Counter {
+        /**
+         * Calls to PolicyFilter.applies() made by filtered policies.
+         */
+        FILTER_EVALUATIONS,
+
+        /**
+         * Streams of due dates opened on basic (unfiltered) policies. Each
+         * isDueOn() check on a filtered policy opens one of these to replay from.
+         */
+        DUE_DATE_STREAMS,
+
+        /**
+         * Due dates generated by basic (unfiltered) policies, across all streams.
+         * Divide by DUE_DATE_STREAMS for the average number per stream.
+         */
+        BASE_DATES_GENERATED,
+
+        /**
+         * Queries asked of a ScheduleQueries.
+         */
+        SCHEDULE_QUERIES,
+
+        /**
+         * Schedule queries answered from the cache of recent results.
+         */
+        SCHEDULE_QUERY_CACHE_HITS,
+
+        /**
+         * Schedule queries that waited for an identical query already in flight,
+         * instead of working out the answer again.
+         */
+        SCHEDULE_QUERIES_COALESCED,
+
+        /**
+         * Schedule queries that actually asked the policy. The rest were hits or
+         * coalesced.
+         */
+        SCHEDULE_QUERIES_COMPUTED
+    }
+
+    enum Histogram {
+        /**
+         * Days examined while searching forward for a date the filter accepts,
+         * for the NEXT_DAY action.
+         */
+        NEXT_FREE_DATE_SCAN_DAYS,
+
+        /**
+         * Days examined while searching backward for a date the filter accepts,
+         * for the PREVIOUS_DAY action.
+         */
+        PREVIOUS_FREE_DATE_SCAN_DAYS,
+
+        /**
+         * Wall clock nanoseconds spent in either of those searches.
+         */
+        FREE_DATE_SCAN_NANOS,
+
+        /**
+         * Due dates replayed by a filtered policy to answer a single isDueOn() call.
+         */
+        IS_DUE_ON_REPLAYED
+    }
+
+    /**
+     * Metrics that go nowhere. Policies check for this and don't even gather
+     * the numbers.
+     */
+    PolicyMetrics DISABLED = new PolicyMetrics() {
+        @Override
+        public void increment(Counter counter, long amount) {
+            // disabled
+        }
+
+        @Override
+        public void record(Histogram histogram, long value) {
+            // disabled
+        }
+
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+    };
+
+    /**
+     * Add to a counter.
+     *
+     * @param counter - which counter
+     * @param amount - how much to add to it
+     */
+    void increment(Counter counter, long amount);
+
+    /**
+     * Record one observation in a histogram.
+     *
+     * @param histogram - which histogram
+     * @param value - the observed value, never negative
+     */
+    void record(Histogram histogram, long value);
+
+    /**
+     * @return false if policies shouldn't bother gathering numbers for this.
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+}
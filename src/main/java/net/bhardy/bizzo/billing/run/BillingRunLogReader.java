@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.run;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.OptionalLong;
+
+/**
+ * Reads the due dates in a billing run log, in the order they were written.
+ * <p>
+ * Only events up to the log's last checkpoint are returned, since anything after
+ * that may be redone by a resumed run. The file is mapped a window at a time and
+ * read in place, cursor style, so no objects are created per event:
+ * <pre>
+ *     try (BillingRunLogReader log = BillingRunLogReader.open(file)) {
+ *         while (log.next()) {
+ *             bill(log.account(), log.dueEpochDay());
+ *         }
+ *     }
+ * </pre>
+ */
+public final class BillingRunLogReader implements AutoCloseable {
+    private static final long WINDOW_BYTES = 64L << 20;
+
+    private final FileChannel channel;
+    private final long committedEnd;
+    private final OptionalLong lastCheckpoint;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position = LogFormat.HEADER_BYTES;
+    private long account;
+    private long dueEpochDay;
+
+    private BillingRunLogReader(FileChannel channel, LogFormat.Committed committed) {
+        this.channel = channel;
+        this.committedEnd = committed.end;
+        this.lastCheckpoint = committed.hasCheckpoint()
+                ? OptionalLong.of(committed.lastAccount)
+                : OptionalLong.empty();
+    }
+
+    /**
+     * @param file - a log written by BillingRunLogWriter
+     *
+     * @return a reader positioned before the first event.
+     *
+     * @throws IOException if the file can't be read, or isn't a billing run log.
+     */
+    public static BillingRunLogReader open(Path file) throws IOException {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            LogFormat.checkHeader(channel, file);
+            return new BillingRunLogReader(channel, LogFormat.findCommitted(channel));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the account recorded by the log's last checkpoint, if it has one.
+     */
+    public OptionalLong lastCheckpoint() {
+        return lastCheckpoint;
+    }
+
+    /**
+     * Move to the next due date event, skipping checkpoints.
+     *
+     * @return false if there are no more.
+     *
+     * @throws IOException if the next part of the file can't be mapped.
+     */
+    public boolean next() throws IOException {
+        while (position < committedEnd) {
+            if (window == null || position >= windowStart + window.limit()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+                        Math.min(WINDOW_BYTES, committedEnd - windowStart));
+            }
+            final int at = (int) (position - windowStart);
+            position += LogFormat.RECORD_BYTES;
+            if (window.getInt(at + 12) == LogFormat.DUE) {
+                account = window.getLong(at);
+                dueEpochDay = window.getInt(at + 8);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the account of the current event.
+     */
+    public long account() {
+        return account;
+    }
+
+    /**
+     * @return the day the current event's account is due, as an epoch day.
+     */
+    public long dueEpochDay() {
+        return dueEpochDay;
+    }
+
+    /**
+     * @return the day the current event's account is due.
+     */
+    public LocalDate dueDate() {
+        return LocalDate.ofEpochDay(dueEpochDay);
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
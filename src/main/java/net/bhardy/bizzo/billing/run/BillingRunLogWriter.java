@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.run;
+
+import net.bhardy.bizzo.billing.BillingPolicy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.OptionalLong;
+
+/**
+ * Writes the output of a billing run, i.e. which accounts are due on which days,
+ * to an append-only log, and lets a crashed run pick up where it left off.
+ * <p>
+ * Events are written straight into a memory mapped region of the file, which is
+ * extended a region at a time, so appending is a few stores into memory with no
+ * per-event objects or system calls.
+ * <p>
+ * Process accounts in ascending order and call checkpoint() every so often with
+ * the last account you've finished. That forces everything so far to disk. If the
+ * run dies, reopening the log throws away whatever was written after the last
+ * checkpoint, and resumeAfter() tells you which account to carry on after, so
+ * nothing ends up in the log twice:
+ * <pre>
+ *     try (BillingRunLogWriter log = BillingRunLogWriter.open(file)) {
+ *         long start = log.resumeAfter().orElse(Long.MIN_VALUE);
+ *         for (Account account : accountsAfter(start)) {
+ *             log.appendDueDates(account.id(), account.policy(), today, today);
+ *             if (++done % 10_000 == 0) {
+ *                 log.checkpoint(account.id());
+ *             }
+ *         }
+ *         log.checkpoint(lastAccount);
+ *     }
+ * </pre>
+ * A writer is not thread safe. Use one per run.
+ */
+public final class BillingRunLogWriter implements AutoCloseable {
+    private static final long REGION_BYTES = 8L << 20;
+
+    private final FileChannel channel;
+    private final OptionalLong resumeAfter;
+    private final List<MappedByteBuffer> unforced = new ArrayList<>();
+    private MappedByteBuffer region;
+    private long regionStart;
+
+    private BillingRunLogWriter(FileChannel channel, long committedEnd, OptionalLong resumeAfter) throws IOException {
+        this.channel = channel;
+        this.resumeAfter = resumeAfter;
+        this.regionStart = committedEnd;
+        this.region = channel.map(FileChannel.MapMode.READ_WRITE, committedEnd, REGION_BYTES);
+    }
+
+    /**
+     * Open a log for writing, creating it if it doesn't exist. If it does, anything
+     * after its last checkpoint is discarded and writing continues from there.
+     *
+     * @param file - the log file
+     *
+     * @return the writer.
+     *
+     * @throws IOException if the file can't be opened, or isn't a billing run log.
+     */
+    public static BillingRunLogWriter open(Path file) throws IOException {
+        final FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                final ByteBuffer header = LogFormat.header();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                return new BillingRunLogWriter(channel, LogFormat.HEADER_BYTES, OptionalLong.empty());
+            }
+            LogFormat.checkHeader(channel, file);
+            final LogFormat.Committed committed = LogFormat.findCommitted(channel);
+            discardAfter(channel, committed.end);
+            final OptionalLong resume = committed.hasCheckpoint()
+                    ? OptionalLong.of(committed.lastAccount)
+                    : OptionalLong.empty();
+            return new BillingRunLogWriter(channel, committed.end, resume);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Zero out everything after the last checkpoint. After a crash the OS may
+     * have written some later pages and not others, so it all has to go.
+     */
+    private static void discardAfter(FileChannel channel, long committedEnd) throws IOException {
+        final ByteBuffer zeros = ByteBuffer.allocate(64 * 1024);
+        for (long position = committedEnd; position < channel.size(); ) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), channel.size() - position));
+            position += channel.write(zeros, position);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * @return the account recorded by the last checkpoint of a previous run, if
+     * this log was reopened. Carry on with the accounts after it.
+     */
+    public OptionalLong resumeAfter() {
+        return resumeAfter;
+    }
+
+    /**
+     * Record that an account is due on a day.
+     *
+     * @param account - the account's id
+     * @param dueDate - the day it's due
+     */
+    public void append(long account, LocalDate dueDate) {
+        append(account, dueDate.toEpochDay());
+    }
+
+    /**
+     * Record that an account is due on a day.
+     *
+     * @param account - the account's id
+     * @param dueEpochDay - the day it's due, as from LocalDate.toEpochDay()
+     */
+    public void append(long account, long dueEpochDay) {
+        put(account, Math.toIntExact(dueEpochDay), LogFormat.DUE);
+    }
+
+    /**
+     * Record every day an account is due between two dates, inclusive.
+     *
+     * @param account - the account's id
+     * @param policy - the account's billing policy
+     * @param from - the first day to consider
+     * @param until - the last day to consider
+     *
+     * @return how many due dates were recorded.
+     */
+    public int appendDueDates(long account, BillingPolicy policy, LocalDate from, LocalDate until) {
+        int appended = 0;
+        final Iterator<LocalDate> upcoming = policy.upcomingDueDates(from).iterator();
+        for (LocalDate date = upcoming.next(); !date.isAfter(until); date = upcoming.next()) {
+            append(account, date.toEpochDay());
+            appended++;
+        }
+        return appended;
+    }
+
+    /**
+     * Make everything written so far durable, and record that every account up
+     * to and including this one is finished.
+     *
+     * @param lastAccount - the last account that's been completely written
+     */
+    public void checkpoint(long lastAccount) {
+        forceAll();
+        put(lastAccount, 0, LogFormat.CHECKPOINT);
+        forceAll();
+    }
+
+    private void put(long account, int epochDay, int kind) {
+        if (region.remaining() < LogFormat.RECORD_BYTES) {
+            nextRegion();
+        }
+        region.putLong(account).putInt(epochDay).putInt(kind);
+    }
+
+    private void nextRegion() {
+        unforced.add(region);
+        regionStart += region.position();
+        try {
+            region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, REGION_BYTES);
+        } catch (IOException e) {
+            throw new IllegalStateException("could not extend billing run log", e);
+        }
+    }
+
+    private void forceAll() {
+        unforced.forEach(MappedByteBuffer::force);
+        unforced.clear();
+        region.force();
+    }
+
+    /**
+     * Closes the log without checkpointing. Anything written since the last
+     * checkpoint will be discarded when the log is next opened for writing, and
+     * isn't seen by readers.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            forceAll();
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.run;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * The layout of a billing run log, shared by the writer and reader.
+ * <p>
+ * A 16 byte header (int magic "BZRL", int format version, 8 reserved bytes) is
+ * followed by 16 byte records: long account, int epoch day, int kind. Space the
+ * writer has claimed but not yet used is zeros, i.e. records of kind NONE.
+ * <p>
+ * The writer forces everything before a checkpoint to disk before writing the
+ * checkpoint, so a checkpoint found on disk means every record before it made
+ * it too. Anything after the last checkpoint may be incomplete after a crash.
+ */
+final class LogFormat {
+    static final int MAGIC = 0x425A524C;
+    static final int FORMAT_VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int RECORD_BYTES = 16;
+
+    static final int NONE = 0;
+    static final int DUE = 1;
+    static final int CHECKPOINT = 2;
+
+    private static final int SCAN_RECORDS = 4096;
+
+    private LogFormat() {
+    }
+
+    static ByteBuffer header() {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(0L);
+        header.flip();
+        return header;
+    }
+
+    static void checkHeader(FileChannel channel, Path file) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+            // keep reading
+        }
+        if (header.hasRemaining() || header.getInt(0) != MAGIC) {
+            throw new IOException("not a billing run log: " + file);
+        }
+        if (header.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("unsupported billing run log version " + header.getInt(4) + " in " + file);
+        }
+    }
+
+    /**
+     * Find the last checkpoint by scanning backwards from the end of the file, so
+     * only the uncommitted tail is read, not the whole log.
+     *
+     * @return the position just after the last checkpoint (or the header if there
+     * isn't one) and the account it recorded.
+     */
+    static Committed findCommitted(FileChannel channel) throws IOException {
+        final long records = (channel.size() - HEADER_BYTES) / RECORD_BYTES;
+        final ByteBuffer chunk = ByteBuffer.allocate(SCAN_RECORDS * RECORD_BYTES);
+        long end = records;
+        while (end > 0) {
+            final long start = Math.max(0, end - SCAN_RECORDS);
+            chunk.clear().limit((int) ((end - start) * RECORD_BYTES));
+            final long offset = HEADER_BYTES + start * RECORD_BYTES;
+            while (chunk.hasRemaining() && channel.read(chunk, offset + chunk.position()) > 0) {
+                // keep reading
+            }
+            for (long record = end - 1; record >= start; record--) {
+                final int at = (int) ((record - start) * RECORD_BYTES);
+                if (chunk.getInt(at + 12) == CHECKPOINT) {
+                    return new Committed(HEADER_BYTES + (record + 1) * RECORD_BYTES, chunk.getLong(at));
+                }
+            }
+            end = start;
+        }
+        return new Committed(HEADER_BYTES, 0L);
+    }
+
+    static final class Committed {
+        final long end;
+        final long lastAccount;
+
+        Committed(long end, long lastAccount) {
+            this.end = end;
+            this.lastAccount = lastAccount;
+        }
+
+        boolean hasCheckpoint() {
+            return end > HEADER_BYTES;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.run;
+
+import net.bhardy.bizzo.billing.BillingPolicy;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.LongConsumer;
+
+/**
+ * Works out which accounts are due at an instant, when accounts are billed on
+ * the calendar of their own time zone.
+ * <p>
+ * Accounts are grouped by zone up front. For each run, each zone's local date is
+ * worked out once, from the UTC offset it had at the last run if the zone hasn't
+ * had a transition since, and each distinct policy is asked about each distinct
+ * local date once, however many accounts and zones share it. So the cost of a
+ * run is mostly a pass over the account ids.
+ * <p>
+ * nextDueInstants() lists the zone midnights at which accounts next become due,
+ * so runs can be scheduled for exactly those moments rather than polling.
+ * <p>
+ * A run is safe to use from several threads once built.
+ */
+public final class ZonedBillingRun {
+    private static final long SECONDS_PER_DAY = 86_400;
+    private static final byte UNKNOWN = 0;
+    private static final byte DUE = 1;
+    private static final byte NOT_DUE = 2;
+
+    private final Zone[] zones;
+    private final BillingPolicy[] policies;
+    private final int accountCount;
+
+    private ZonedBillingRun(Zone[] zones, BillingPolicy[] policies, int accountCount) {
+        this.zones = zones;
+        this.policies = policies;
+        this.accountCount = accountCount;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return how many accounts this run covers.
+     */
+    public int accounts() {
+        return accountCount;
+    }
+
+    /**
+     * Find the accounts that are due on the local date, in their zone, at an instant.
+     * Accounts are reported zone by zone, in the order they were added.
+     *
+     * @param instant - the moment of the run
+     * @param dueAccounts - told the id of each account that's due
+     *
+     * @return how many accounts were due.
+     */
+    public int dueAt(Instant instant, LongConsumer dueAccounts) {
+        final Map<Long, byte[]> answersByDay = new HashMap<>();
+        int due = 0;
+        for (Zone zone : zones) {
+            final long epochDay = zone.localEpochDay(instant);
+            final byte[] answers = answersByDay.computeIfAbsent(epochDay, day -> new byte[policies.length]);
+            LocalDate date = null;
+            for (int i = 0; i < zone.accounts.length; i++) {
+                final int policy = zone.policyIndexes[i];
+                if (answers[policy] == UNKNOWN) {
+                    if (date == null) {
+                        date = LocalDate.ofEpochDay(epochDay);
+                    }
+                    answers[policy] = policies[policy].isDueOn(date) ? DUE : NOT_DUE;
+                }
+                if (answers[policy] == DUE) {
+                    dueAccounts.accept(zone.accounts[i]);
+                    due++;
+                }
+            }
+        }
+        return due;
+    }
+
+    /**
+     * @param instant - the moment of the run
+     *
+     * @return the ids of the accounts due at that instant.
+     */
+    public long[] dueAt(Instant instant) {
+        final long[] due = new long[accountCount];
+        final int[] count = {0};
+        dueAt(instant, account -> due[count[0]++] = account);
+        return Arrays.copyOf(due, count[0]);
+    }
+
+    /**
+     * List the instants after a given one at which some account becomes due,
+     * i.e. the start of a day in an account's zone on which its policy is due.
+     *
+     * @param after - list instants strictly after this
+     * @param limit - the most instants to list
+     *
+     * @return the instants, earliest first, without duplicates.
+     */
+    public List<Instant> nextDueInstants(Instant after, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative: " + limit);
+        }
+        final PriorityQueue<ZoneCursor> cursors = new PriorityQueue<>();
+        for (Zone zone : zones) {
+            if (zone.accounts.length > 0) {
+                cursors.add(new ZoneCursor(zone, zone.localEpochDay(after) + 1));
+            }
+        }
+        final List<Instant> instants = new ArrayList<>();
+        while (instants.size() < limit && !cursors.isEmpty()) {
+            final ZoneCursor next = cursors.poll();
+            if (instants.isEmpty() || !instants.get(instants.size() - 1).equals(next.midnight)) {
+                instants.add(next.midnight);
+            }
+            next.advance();
+            cursors.add(next);
+        }
+        return instants;
+    }
+
+    private static final class Zone {
+        private final ZoneId id;
+        private final ZoneRules rules;
+        private final long[] accounts;
+        private final int[] policyIndexes;
+        private final int[] distinctPolicies;
+        private volatile OffsetWindow offset;
+
+        Zone(ZoneId id, long[] accounts, int[] policyIndexes) {
+            this.id = id;
+            this.rules = id.getRules();
+            this.accounts = accounts;
+            this.policyIndexes = policyIndexes;
+            this.distinctPolicies = Arrays.stream(policyIndexes).distinct().toArray();
+        }
+
+        long localEpochDay(Instant instant) {
+            final long second = instant.getEpochSecond();
+            OffsetWindow window = offset;
+            if (window == null || !window.covers(second)) {
+                window = OffsetWindow.around(rules, instant);
+                offset = window;
+            }
+            return Math.floorDiv(second + window.offsetSeconds, SECONDS_PER_DAY);
+        }
+    }
+
+    /**
+     * A stretch of time over which a zone's UTC offset doesn't change.
+     */
+    private static final class OffsetWindow {
+        private final long fromSecond;
+        private final long untilSecond;
+        private final int offsetSeconds;
+
+        private OffsetWindow(long fromSecond, long untilSecond, int offsetSeconds) {
+            this.fromSecond = fromSecond;
+            this.untilSecond = untilSecond;
+            this.offsetSeconds = offsetSeconds;
+        }
+
+        static OffsetWindow around(ZoneRules rules, Instant instant) {
+            final ZoneOffset offset = rules.getOffset(instant);
+            if (rules.isFixedOffset()) {
+                return new OffsetWindow(Long.MIN_VALUE, Long.MAX_VALUE, offset.getTotalSeconds());
+            }
+            final ZoneOffsetTransition previous = rules.previousTransition(instant);
+            final ZoneOffsetTransition next = rules.nextTransition(instant);
+            // if in doubt about where the offset started, it's at least good from now
+            final long from = previous != null && previous.getOffsetAfter().equals(offset)
+                    ? previous.toEpochSecond()
+                    : instant.getEpochSecond();
+            final long until = next != null ? next.toEpochSecond() : Long.MAX_VALUE;
+            return new OffsetWindow(from, until, offset.getTotalSeconds());
+        }
+
+        boolean covers(long second) {
+            return second >= fromSecond && second < untilSecond;
+        }
+    }
+
+    /**
+     * Walks the days on which any policy in one zone is due, as the instants
+     * those days start.
+     */
+    private final class ZoneCursor implements Comparable<ZoneCursor> {
+        private final Zone zone;
+        private final PriorityQueue<PolicyCursor> policies = new PriorityQueue<>();
+        private Instant midnight;
+
+        ZoneCursor(Zone zone, long fromEpochDay) {
+            this.zone = zone;
+            final LocalDate from = LocalDate.ofEpochDay(fromEpochDay);
+            for (int policy : zone.distinctPolicies) {
+                policies.add(new PolicyCursor(ZonedBillingRun.this.policies[policy].upcomingDueDates(from).iterator()));
+            }
+            midnight = policies.peek().date.atStartOfDay(zone.id).toInstant();
+        }
+
+        void advance() {
+            final LocalDate current = policies.peek().date;
+            while (policies.peek().date.equals(current)) {
+                final PolicyCursor policy = policies.poll();
+                policy.advance();
+                policies.add(policy);
+            }
+            midnight = policies.peek().date.atStartOfDay(zone.id).toInstant();
+        }
+
+        @Override
+        public int compareTo(ZoneCursor other) {
+            return midnight.compareTo(other.midnight);
+        }
+    }
+
+    private static final class PolicyCursor implements Comparable<PolicyCursor> {
+        private final Iterator<LocalDate> dates;
+        private LocalDate date;
+
+        PolicyCursor(Iterator<LocalDate> dates) {
+            this.dates = dates;
+            this.date = dates.next();
+        }
+
+        void advance() {
+            date = dates.next();
+        }
+
+        @Override
+        public int compareTo(PolicyCursor other) {
+            return date.compareTo(other.date);
+        }
+    }
+
+    public static final class Builder {
+        private final Map<ZoneId, List<long[]>> byZone = new LinkedHashMap<>();
+        private final Map<BillingPolicy, Integer> policyIndexes = new IdentityHashMap<>();
+        private final List<BillingPolicy> policies = new ArrayList<>();
+        private int accountCount;
+
+        private Builder() {
+        }
+
+        /**
+         * @param account - the account's id
+         * @param zone - the zone whose calendar the account is billed on
+         * @param policy - the account's billing policy. Share instances between
+         *               accounts where you can, they're only asked once per day.
+         *
+         * @return this builder.
+         */
+        public Builder add(long account, ZoneId zone, BillingPolicy policy) {
+            if (zone == null || policy == null) {
+                throw new IllegalArgumentException("zone and policy must not be null");
+            }
+            final int policyIndex = policyIndexes.computeIfAbsent(policy, p -> {
+                policies.add(p);
+                return policies.size() - 1;
+            });
+            byZone.computeIfAbsent(zone, z -> new ArrayList<>()).add(new long[] {account, policyIndex});
+            accountCount++;
+            return this;
+        }
+
+        public ZonedBillingRun build() {
+            final ZonedBillingRun run = new ZonedBillingRun(new Zone[byZone.size()],
+                    policies.toArray(new BillingPolicy[0]), accountCount);
+            int z = 0;
+            for (Map.Entry<ZoneId, List<long[]>> zone : byZone.entrySet()) {
+                final List<long[]> members = zone.getValue();
+                final long[] accounts = new long[members.size()];
+                final int[] indexes = new int[members.size()];
+                for (int i = 0; i < members.size(); i++) {
+                    accounts[i] = members.get(i)[0];
+                    indexes[i] = (int) members.get(i)[1];
+                }
+                run.zones[z++] = new Zone(zone.getKey(), accounts, indexes);
+            }
+            return run;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.schedule;
+
+import net.bhardy.bizzo.billing.BillingPolicy;
+
+import java.time.LocalDate;
+import java.util.Objects;
+
+/**
+ * One due date of a tracked schedule which moved, appeared or disappeared
+ * because a calendar changed.
+ *
+ * @param <K> - the type of key schedules are tracked under
+ */
+public final class DueDateChange<K> {
+    private final K key;
+    private final BillingPolicy policy;
+    private final LocalDate oldDate;
+    private final LocalDate newDate;
+
+    DueDateChange(K key, BillingPolicy policy, LocalDate oldDate, LocalDate newDate) {
+        this.key = key;
+        this.policy = policy;
+        this.oldDate = oldDate;
+        this.newDate = newDate;
+    }
+
+    public K getKey() {
+        return key;
+    }
+
+    public BillingPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return the date the bill used to be due, or null if this is a new due date.
+     */
+    public LocalDate getOldDate() {
+        return oldDate;
+    }
+
+    /**
+     * @return the date the bill is now due, or null if this due date went away.
+     */
+    public LocalDate getNewDate() {
+        return newDate;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof DueDateChange)) {
+            return false;
+        }
+        final DueDateChange<?> that = (DueDateChange<?>) other;
+        return Objects.equals(key, that.key)
+                && policy == that.policy
+                && Objects.equals(oldDate, that.oldDate)
+                && Objects.equals(newDate, that.newDate);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(key, System.identityHashCode(policy), oldDate, newDate);
+    }
+
+    @Override
+    public String toString() {
+        return key + ": " + oldDate + " -> " + newDate;
+    }
+}
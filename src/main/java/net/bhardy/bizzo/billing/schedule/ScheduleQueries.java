@@ -0,0 +1,354 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.schedule;
+
+import net.bhardy.bizzo.billing.BillingPolicy;
+import net.bhardy.bizzo.billing.FilterRegistry;
+import net.bhardy.bizzo.billing.HolidayCalendar;
+import net.bhardy.bizzo.billing.metrics.PolicyMetrics;
+
+import java.time.Clock;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+
+/**
+ * Answers "what are the next k due dates of this policy" for lots of threads at
+ * once, without working out the same answer over and over.
+ * <p>
+ * If a thread asks a question another thread is already working on, i.e. the
+ * same policy instance, start day and count, it waits for that answer instead of
+ * computing its own. Answers are then kept in a small cache until the clock's
+ * date changes, since most questions are about today. Share policy instances
+ * between accounts to get the most out of this; policies are compared by
+ * identity, not by what they do.
+ * <p>
+ * A question also includes the versions of the holiday calendars the policy
+ * uses, and of the FilterRegistry if one is supplied, as seen by the asking
+ * thread. So an edited calendar or registry, or a thread pinned to an older
+ * registry snapshot, never gets an answer worked out under other data.
+ * <p>
+ * Looking up the cache takes no locks. When it's full, answers are thrown away
+ * oldest first, except that one used since it was last looked at gets a second
+ * chance and goes to the back of the queue (the CLOCK approximation of LRU). The
+ * calendars a policy uses are worked out once per policy and registry version,
+ * not on every question.
+ * <p>
+ * The counters SCHEDULE_QUERIES, SCHEDULE_QUERY_CACHE_HITS,
+ * SCHEDULE_QUERIES_COALESCED and SCHEDULE_QUERIES_COMPUTED are reported to the
+ * metrics, if you supply some.
+ */
+public final class ScheduleQueries {
+    private final Clock clock;
+    private final int maxCached;
+    private final PolicyMetrics metrics;
+    private final FilterRegistry registry;
+    private final ConcurrentMap<Query, CompletableFuture<List<LocalDate>>> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Query, Cached> cache = new ConcurrentHashMap<>();
+    private final Queue<Query> evictionOrder = new ConcurrentLinkedQueue<>();
+    private final ConcurrentMap<Identity, Calendars> calendarsByPolicy = new ConcurrentHashMap<>();
+    private volatile LocalDate cachedOn;
+
+    /**
+     * @param clock - decides what today is, and when the cache is thrown away
+     * @param maxCached - how many answers to keep, roughly the least recently used go first
+     * @param metrics - where to count queries, or PolicyMetrics.DISABLED
+     */
+    public ScheduleQueries(Clock clock, int maxCached, PolicyMetrics metrics) {
+        this(clock, maxCached, metrics, null);
+    }
+
+    /**
+     * @param clock - decides what today is, and when the cache is thrown away
+     * @param maxCached - how many answers to keep, roughly the least recently used go first
+     * @param metrics - where to count queries, or PolicyMetrics.DISABLED
+     * @param registry - the registry the policies' named filters come from, or null
+     */
+    public ScheduleQueries(Clock clock, int maxCached, PolicyMetrics metrics, FilterRegistry registry) {
+        if (maxCached < 0) {
+            throw new IllegalArgumentException("maxCached must not be negative: " + maxCached);
+        }
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics must not be null, use PolicyMetrics.DISABLED");
+        }
+        this.clock = clock;
+        this.maxCached = maxCached;
+        this.metrics = metrics;
+        this.registry = registry;
+        this.cachedOn = LocalDate.now(clock);
+    }
+
+    /**
+     * @param policy - the policy to ask
+     * @param count - how many due dates
+     *
+     * @return the next count due dates from today, inclusive.
+     */
+    public List<LocalDate> upcoming(BillingPolicy policy, int count) {
+        return upcoming(policy, LocalDate.now(clock), count);
+    }
+
+    /**
+     * @param policy - the policy to ask
+     * @param from - the first day to consider
+     * @param count - how many due dates
+     *
+     * @return the next count due dates on or after from, as an unmodifiable list.
+     */
+    public List<LocalDate> upcoming(BillingPolicy policy, LocalDate from, int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count must not be negative: " + count);
+        }
+        count(PolicyMetrics.Counter.SCHEDULE_QUERIES);
+        final long registryVersion = registry == null ? 0 : registry.visible().getVersion();
+        final Query query = new Query(policy, from, count, calendarsOf(policy, registryVersion), registryVersion);
+        final List<LocalDate> cached = cached(query);
+        if (cached != null) {
+            count(PolicyMetrics.Counter.SCHEDULE_QUERY_CACHE_HITS);
+            return cached;
+        }
+
+        final CompletableFuture<List<LocalDate>> mine = new CompletableFuture<>();
+        final CompletableFuture<List<LocalDate>> theirs = inFlight.putIfAbsent(query, mine);
+        if (theirs != null) {
+            count(PolicyMetrics.Counter.SCHEDULE_QUERIES_COALESCED);
+            return await(theirs);
+        }
+        try {
+            // it may have been finished and cached between our two looks
+            List<LocalDate> answer = cached(query);
+            if (answer != null) {
+                count(PolicyMetrics.Counter.SCHEDULE_QUERY_CACHE_HITS);
+            } else {
+                count(PolicyMetrics.Counter.SCHEDULE_QUERIES_COMPUTED);
+                answer = Collections.unmodifiableList(
+                        policy.upcomingDueDates(from).limit(count).collect(Collectors.toList()));
+                remember(query, answer);
+            }
+            mine.complete(answer);
+            return answer;
+        } catch (RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(query, mine);
+        }
+    }
+
+    /**
+     * Forget all cached answers. Edits to calendars and the registry don't need
+     * this, questions asked after them don't match answers from before.
+     */
+    public void clear() {
+        cache.clear();
+        evictionOrder.clear();
+        calendarsByPolicy.clear();
+    }
+
+    /**
+     * A policy's calendars can only change with the registry its named filters
+     * come from, so they're kept until the version asked about changes.
+     */
+    private Calendars calendarsOf(BillingPolicy policy, long registryVersion) {
+        final Identity key = new Identity(policy);
+        final Calendars known = calendarsByPolicy.get(key);
+        if (known != null && known.registryVersion == registryVersion) {
+            return known;
+        }
+        final Calendars resolved = new Calendars(policy.calendars(), registryVersion);
+        calendarsByPolicy.put(key, resolved);
+        return resolved;
+    }
+
+    /**
+     * Answers don't depend on today, so a day change racing with a put can only
+     * leave behind a harmless extra entry.
+     */
+    private List<LocalDate> cached(Query query) {
+        final LocalDate today = LocalDate.now(clock);
+        if (!today.equals(cachedOn)) {
+            cachedOn = today;
+            clear();
+        }
+        final Cached cached = cache.get(query);
+        if (cached == null) {
+            return null;
+        }
+        if (!cached.referenced) {
+            cached.referenced = true;
+        }
+        return cached.answer;
+    }
+
+    private void remember(Query query, List<LocalDate> answer) {
+        if (maxCached == 0) {
+            return;
+        }
+        if (cache.put(query, new Cached(answer)) == null) {
+            evictionOrder.add(query);
+        }
+        while (cache.size() > maxCached) {
+            if (!evictOne()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gives each entry used since it was last looked at one more trip round the
+     * queue. Queued questions whose answers were already thrown away are skipped.
+     *
+     * @return false if there was nothing left to evict.
+     */
+    private boolean evictOne() {
+        for (int looked = 0; ; looked++) {
+            final Query oldest = evictionOrder.poll();
+            if (oldest == null) {
+                return false;
+            }
+            final Cached cached = cache.get(oldest);
+            if (cached == null) {
+                continue;
+            }
+            // hits on other threads can keep setting the flag, so don't go round forever
+            if (cached.referenced && looked <= maxCached) {
+                cached.referenced = false;
+                evictionOrder.add(oldest);
+                continue;
+            }
+            cache.remove(oldest, cached);
+            return true;
+        }
+    }
+
+    private static List<LocalDate> await(CompletableFuture<List<LocalDate>> answer) {
+        try {
+            return answer.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void count(PolicyMetrics.Counter counter) {
+        if (metrics.isEnabled()) {
+            metrics.increment(counter, 1);
+        }
+    }
+
+    private static final class Cached {
+        private final List<LocalDate> answer;
+        private volatile boolean referenced;
+
+        Cached(List<LocalDate> answer) {
+            this.answer = answer;
+        }
+    }
+
+    private static final class Calendars {
+        private final Set<HolidayCalendar> set;
+        private final HolidayCalendar[] array;
+        private final long registryVersion;
+
+        Calendars(Set<HolidayCalendar> set, long registryVersion) {
+            this.set = set;
+            this.array = set.toArray(new HolidayCalendar[0]);
+            this.registryVersion = registryVersion;
+        }
+    }
+
+    /**
+     * Policies are compared by identity, like they are in questions.
+     */
+    private static final class Identity {
+        private final BillingPolicy policy;
+
+        Identity(BillingPolicy policy) {
+            this.policy = policy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Identity && ((Identity) o).policy == policy;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(policy);
+        }
+    }
+
+    /**
+     * Calendar versions only ever go up, so for the same calendars their sum
+     * changes with every edit to any of them.
+     */
+    private static final class Query {
+        private final BillingPolicy policy;
+        private final long fromEpochDay;
+        private final int count;
+        private final Set<HolidayCalendar> calendars;
+        private final long calendarVersions;
+        private final long registryVersion;
+
+        Query(BillingPolicy policy, LocalDate from, int count, Calendars calendars, long registryVersion) {
+            this.policy = policy;
+            this.fromEpochDay = from.toEpochDay();
+            this.count = count;
+            this.calendars = calendars.set;
+            long versions = 0;
+            for (HolidayCalendar calendar : calendars.array) {
+                versions += calendar.getVersion();
+            }
+            this.calendarVersions = versions;
+            this.registryVersion = registryVersion;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Query)) {
+                return false;
+            }
+            final Query other = (Query) o;
+            return policy == other.policy && fromEpochDay == other.fromEpochDay && count == other.count
+                    && calendarVersions == other.calendarVersions && registryVersion == other.registryVersion
+                    && calendars.equals(other.calendars);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = System.identityHashCode(policy) * 31 + Long.hashCode(fromEpochDay);
+            hash = hash * 31 + count;
+            hash = hash * 31 + Long.hashCode(calendarVersions);
+            return hash * 31 + Long.hashCode(registryVersion);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.schedule;
+
+import net.bhardy.bizzo.billing.BillingPolicy;
+import net.bhardy.bizzo.billing.HolidayCalendar;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Precomputed due dates for a set of policies, kept in a file which is memory
+ * mapped when loaded, so a freshly started process can answer isDueOn() and
+ * upcomingDueDates() without first replaying years of schedules.
+ * <p>
+ * Each policy gets a bitset with one bit per day of the exported range. Along
+ * with it the file records a hash of the policy's description and the
+ * fingerprints of the calendars it uses. If the policy you're serving no longer
+ * hashes the same, e.g. because a holiday was added since the export, the table
+ * is stale and the live policy is used instead. So is a policy that can't
+ * describe itself, e.g. one with a lambda filter, since there's no telling
+ * whether it has changed.
+ * <p>
+ * File layout, all big endian:
+ * <pre>
+ *     header:  int magic "BZST", int format version, int entry count, int reserved
+ *     index:   per entry: short key length, key (UTF-8), long structure hash,
+ *              int first epoch day, int day count, long data offset
+ *     data:    per entry: ceil(day count / 64) longs, bit i set if due on first + i
+ * </pre>
+ */
+public final class ScheduleTables {
+    private static final int MAGIC = 0x425A5354;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int INDEX_FIXED_BYTES = Short.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES + Long.BYTES;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    /**
+     * Written for policies without a structure hash. Never compared, as their
+     * tables are never served.
+     */
+    private static final long NO_HASH = 0L;
+
+    private final ByteBuffer data;
+    private final Map<String, Entry> entries;
+
+    private ScheduleTables(ByteBuffer data, Map<String, Entry> entries) {
+        this.data = data;
+        this.entries = entries;
+    }
+
+    /**
+     * Work out the due dates of some policies over a range of days and write them
+     * to a file. The file is written next to its destination and moved into place,
+     * so nobody ever maps a half written table.
+     *
+     * @param file - where to write the tables
+     * @param policies - the policies to export, by the key they will be looked up with
+     * @param from - the first day to precompute
+     * @param until - the last day to precompute, inclusive
+     *
+     * @throws IOException if the file can't be written.
+     */
+    public static void export(Path file, Map<String, ? extends BillingPolicy> policies, LocalDate from, LocalDate until)
+            throws IOException {
+        final long days = until.toEpochDay() - from.toEpochDay() + 1;
+        if (days <= 0 || days > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("bad range: " + from + " to " + until);
+        }
+        final int dayCount = (int) days;
+        final int words = (dayCount + Long.SIZE - 1) / Long.SIZE;
+
+        int indexBytes = 0;
+        for (String key : policies.keySet()) {
+            indexBytes += INDEX_FIXED_BYTES + keyBytes(key).length;
+        }
+        final long dataStart = align(HEADER_BYTES + indexBytes);
+        final long fileSize = dataStart + (long) policies.size() * words * Long.BYTES;
+
+        final ByteBuffer out = ByteBuffer.allocate(Math.toIntExact(fileSize));
+        out.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(policies.size()).putInt(0);
+        long dataOffset = dataStart;
+        for (Map.Entry<String, ? extends BillingPolicy> policy : policies.entrySet()) {
+            final byte[] key = keyBytes(policy.getKey());
+            out.putShort((short) key.length).put(key);
+            out.putLong(structureHash(policy.getValue()).orElse(NO_HASH));
+            out.putInt(Math.toIntExact(from.toEpochDay())).putInt(dayCount).putLong(dataOffset);
+            dataOffset += (long) words * Long.BYTES;
+        }
+        out.position((int) dataStart);
+        for (BillingPolicy policy : policies.values()) {
+            final long[] bits = policy.dueDays(from, dayCount).toLongArray();
+            for (int word = 0; word < words; word++) {
+                out.putLong(word < bits.length ? bits[word] : 0L);
+            }
+        }
+        out.flip();
+
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Map a file written by export(). Only the index is read up front, the
+     * bitsets are paged in by the OS as they're used.
+     *
+     * @param file - the file to map
+     *
+     * @return the tables in it.
+     *
+     * @throws IOException if the file can't be read or isn't a table file we understand.
+     */
+    public static ScheduleTables load(Path file) throws IOException {
+        final ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (data.limit() < HEADER_BYTES || data.getInt(0) != MAGIC) {
+            throw new IOException("not a schedule table file: " + file);
+        }
+        if (data.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("unsupported schedule table version " + data.getInt(4) + " in " + file);
+        }
+        final int count = data.getInt(8);
+        final Map<String, Entry> entries = new HashMap<>();
+        final ByteBuffer index = data.duplicate();
+        index.position(HEADER_BYTES);
+        for (int i = 0; i < count; i++) {
+            final byte[] key = new byte[index.getShort() & 0xFFFF];
+            index.get(key);
+            final long hash = index.getLong();
+            final int firstEpochDay = index.getInt();
+            final int dayCount = index.getInt();
+            final long offset = index.getLong();
+            if (offset + (long) ((dayCount + Long.SIZE - 1) / Long.SIZE) * Long.BYTES > data.limit()) {
+                throw new IOException("truncated schedule table file: " + file);
+            }
+            entries.put(new String(key, StandardCharsets.UTF_8), new Entry(hash, firstEpochDay, dayCount, (int) offset));
+        }
+        return new ScheduleTables(data, entries);
+    }
+
+    /**
+     * @return the keys of all the policies in this file.
+     */
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * @param key - the key the policy was exported under
+     * @param live - the policy as it is now
+     *
+     * @return true if there's a table for the key and the policy still matches it.
+     */
+    public boolean isCurrent(String key, BillingPolicy live) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return false;
+        }
+        final OptionalLong hash = structureHash(live);
+        return hash.isPresent() && hash.getAsLong() == entry.structureHash;
+    }
+
+    /**
+     * Get a policy which answers from the table where it can, and from the live
+     * policy outside the precomputed range.
+     *
+     * @param key - the key the policy was exported under
+     * @param live - the policy as it is now
+     *
+     * @return a table backed policy, or the live policy itself if the table is
+     * missing or stale, or the policy can't be described.
+     */
+    public BillingPolicy serve(String key, BillingPolicy live) {
+        if (!isCurrent(key, live)) {
+            return live;
+        }
+        final Entry entry = entries.get(key);
+        return new TabledPolicy(live, data, entry.offset, entry.firstEpochDay, entry.dayCount);
+    }
+
+    /**
+     * Hash a policy's description along with the names and fingerprints of the
+     * calendars it uses. This changes whenever the policy's due dates might.
+     *
+     * @param policy - the policy to hash
+     *
+     * @return the hash, or empty if the policy can't be described, in which case
+     * there's no way to tell whether its due dates have changed.
+     */
+    public static OptionalLong structureHash(BillingPolicy policy) {
+        final String description = policy.describe();
+        if (description == null) {
+            return OptionalLong.empty();
+        }
+        long hash = hash(FNV_OFFSET, description);
+        final List<HolidayCalendar> calendars = policy.calendars().stream()
+                .sorted(Comparator.comparing(HolidayCalendar::getName))
+                .collect(Collectors.toList());
+        for (HolidayCalendar calendar : calendars) {
+            hash = hash(hash, calendar.getName());
+            hash = (hash ^ calendar.getFingerprint()) * FNV_PRIME;
+        }
+        return OptionalLong.of(hash);
+    }
+
+    private static long hash(long hash, String text) {
+        long result = hash;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            result = (result ^ (b & 0xFF)) * FNV_PRIME;
+        }
+        return (result ^ 0xFF) * FNV_PRIME;
+    }
+
+    private static byte[] keyBytes(String key) {
+        final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("key too long: " + key.substring(0, 32) + "...");
+        }
+        return bytes;
+    }
+
+    private static long align(long position) {
+        return (position + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    private static final class Entry {
+        private final long structureHash;
+        private final int firstEpochDay;
+        private final int dayCount;
+        private final int offset;
+
+        Entry(long structureHash, int firstEpochDay, int dayCount, int offset) {
+            this.structureHash = structureHash;
+            this.firstEpochDay = firstEpochDay;
+            this.dayCount = dayCount;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.schedule;
+
+import net.bhardy.bizzo.billing.BillingPolicy;
+import net.bhardy.bizzo.billing.FilterRegistry;
+import net.bhardy.bizzo.billing.HolidayCalendar;
+
+import java.time.LocalDate;
+import java.time.Period;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Keeps materialised schedules of due dates up to date as the holiday calendars
+ * their policies depend on change.
+ * <p>
+ * Track a policy over a range of dates and the tracker works out its due dates,
+ * finds the calendars the policy uses, and listens to them. When a calendar is
+ * edited, only schedules using that calendar are looked at, and for each of
+ * those only a window around each changed day is re-evaluated:
+ * <ul>
+ *     <li>it starts just after a due date at least one cycle before the changed day.
+ *     Restarting a policy right after one of its own due dates puts NEXT_DAY and
+ *     PREVIOUS_DAY filters back in exactly the state they were in.</li>
+ *     <li>it ends at the first due date after the changed day which the old
+ *     schedule also had. From there on nothing can differ until the next change.</li>
+ * </ul>
+ * So the work done is proportional to the number of due dates near the changes,
+ * not to how many schedules are tracked or how long they are.
+ * <p>
+ * Like isDueOn() on a filtered policy, this assumes a filter never pushes a due
+ * date by more than a cycle or so.
+ * <p>
+ * Policies using named filters from a FilterRegistry should follow() it. When
+ * the registry publishes a new version, every schedule whose policy now uses
+ * different calendars, or describes itself differently, is worked out again
+ * from scratch, and listens to its new calendars from then on.
+ *
+ * @param <K> - the type of key schedules are tracked under, e.g. a policy or account id
+ */
+public final class ScheduleTracker<K> implements HolidayCalendar.Listener, FilterRegistry.Listener, AutoCloseable {
+    private final Map<K, Tracked> tracked = new HashMap<>();
+    private final Map<HolidayCalendar, Set<Tracked>> dependents = new HashMap<>();
+    private final Map<FilterRegistry, Long> followed = new HashMap<>();
+    private final List<Consumer<List<DueDateChange<K>>>> subscribers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Start tracking the due dates of a policy between two dates, inclusive.
+     * Tracking a key again replaces whatever it was tracking before.
+     *
+     * @param key - what to call this schedule
+     * @param policy - the policy to track
+     * @param from - the first date of interest
+     * @param until - the last date of interest
+     */
+    public synchronized void track(K key, BillingPolicy policy, LocalDate from, LocalDate until) {
+        if (until.isBefore(from)) {
+            throw new IllegalArgumentException("until " + until + " is before from " + from);
+        }
+        untrack(key);
+        final Tracked schedule = new Tracked(key, policy, from, until);
+        schedule.dates.addAll(evaluate(policy, from, until));
+        tracked.put(key, schedule);
+        listen(schedule);
+    }
+
+    /**
+     * Stop tracking a schedule.
+     *
+     * @param key - the schedule to forget about
+     */
+    public synchronized void untrack(K key) {
+        final Tracked schedule = tracked.remove(key);
+        if (schedule == null) {
+            return;
+        }
+        stopListening(schedule);
+    }
+
+    /**
+     * Registers the schedule with the calendars its policy uses now, and
+     * remembers them, since the policy may use others by the time we stop.
+     */
+    private void listen(Tracked schedule) {
+        schedule.calendars = schedule.policy.calendars();
+        schedule.description = schedule.policy.describe();
+        for (HolidayCalendar calendar : schedule.calendars) {
+            dependents.computeIfAbsent(calendar, newlyUsed -> {
+                newlyUsed.addListener(this);
+                return new HashSet<>();
+            }).add(schedule);
+        }
+    }
+
+    private void stopListening(Tracked schedule) {
+        for (HolidayCalendar calendar : schedule.calendars) {
+            final Set<Tracked> users = dependents.get(calendar);
+            users.remove(schedule);
+            if (users.isEmpty()) {
+                dependents.remove(calendar);
+                calendar.removeListener(this);
+            }
+        }
+    }
+
+    /**
+     * Recompute schedules when a registry their policies' named filters come
+     * from publishes a new version, until this tracker is closed.
+     *
+     * @param registry - the registry
+     */
+    public synchronized void follow(FilterRegistry registry) {
+        if (followed.putIfAbsent(registry, registry.snapshot().getVersion()) == null) {
+            registry.addListener(this);
+        }
+    }
+
+    @Override
+    public void registryChanged(FilterRegistry registry, FilterRegistry.Snapshot published) {
+        final List<DueDateChange<K>> changes;
+        // the writer might have pinned an older version, the schedules should use the newest
+        final FilterRegistry.Pin pin = registry.pin(registry.snapshot());
+        try {
+            changes = reresolve(registry, pin.getSnapshot());
+        } finally {
+            pin.close();
+        }
+        if (!changes.isEmpty()) {
+            subscribers.forEach(subscriber -> subscriber.accept(changes));
+        }
+    }
+
+    /**
+     * Recompute against one snapshot, the same one for every schedule. A policy
+     * that can't describe itself might have changed in any way, so it's always
+     * recomputed.
+     */
+    private synchronized List<DueDateChange<K>> reresolve(FilterRegistry registry, FilterRegistry.Snapshot snapshot) {
+        final Long resolvedAgainst = followed.get(registry);
+        // versions can be announced out of order, and the newest covers everything before it
+        if (resolvedAgainst == null || resolvedAgainst >= snapshot.getVersion()) {
+            return Collections.emptyList();
+        }
+        followed.put(registry, snapshot.getVersion());
+        final List<DueDateChange<K>> changes = new ArrayList<>();
+        for (Tracked schedule : tracked.values()) {
+            final String description = schedule.policy.describe();
+            if (description != null && description.equals(schedule.description)
+                    && schedule.policy.calendars().equals(schedule.calendars)) {
+                continue;
+            }
+            final List<LocalDate> fresh = evaluate(schedule.policy, schedule.from, schedule.until);
+            diff(schedule, new ArrayList<>(schedule.dates), fresh, changes);
+            schedule.dates.clear();
+            schedule.dates.addAll(fresh);
+            stopListening(schedule);
+            listen(schedule);
+        }
+        return changes;
+    }
+
+    /**
+     * @param key - which schedule
+     *
+     * @return a copy of its current due dates, or an empty set if it isn't tracked.
+     */
+    public synchronized NavigableSet<LocalDate> schedule(K key) {
+        final Tracked schedule = tracked.get(key);
+        if (schedule == null) {
+            return Collections.emptyNavigableSet();
+        }
+        return Collections.unmodifiableNavigableSet(new TreeSet<>(schedule.dates));
+    }
+
+    /**
+     * Get told about due dates that move whenever a calendar changes. The
+     * subscriber is called on the thread that edited the calendar.
+     *
+     * @param subscriber - receives every non-empty batch of changes
+     */
+    public void subscribe(Consumer<List<DueDateChange<K>>> subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    @Override
+    public void calendarChanged(HolidayCalendar.Change change) {
+        final List<DueDateChange<K>> changes = recompute(change);
+        if (!changes.isEmpty()) {
+            subscribers.forEach(subscriber -> subscriber.accept(changes));
+        }
+    }
+
+    /**
+     * Bring every schedule depending on a calendar up to date with a change to it.
+     * <p>
+     * This happens automatically for calendars used by tracked policies. Calling
+     * it again for the same change finds nothing more to do.
+     *
+     * @param change - what changed in the calendar
+     *
+     * @return the due dates that moved, appeared or disappeared.
+     */
+    public synchronized List<DueDateChange<K>> recompute(HolidayCalendar.Change change) {
+        final Set<Tracked> affected = dependents.get(change.getCalendar());
+        if (affected == null || change.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final SortedSet<LocalDate> changedDays = change.getChangedDays();
+        final List<DueDateChange<K>> changes = new ArrayList<>();
+        for (Tracked schedule : affected) {
+            LocalDate handledThrough = null;
+            for (LocalDate changed : changedDays) {
+                if (changed.isAfter(schedule.until)) {
+                    break;
+                }
+                if (handledThrough == null || changed.isAfter(handledThrough)) {
+                    handledThrough = recomputeAround(schedule, changed, changes);
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * @return the last date the recomputed window covered.
+     */
+    private LocalDate recomputeAround(Tracked schedule, LocalDate changed, List<DueDateChange<K>> changes) {
+        final LocalDate anchor = schedule.dates.lower(changed.minus(schedule.lookBack));
+        final LocalDate restart = anchor == null ? schedule.from : anchor.plusDays(1);
+
+        final List<LocalDate> fresh = new ArrayList<>();
+        LocalDate resync = null;
+        final Iterator<LocalDate> dates = schedule.policy.upcomingDueDates(restart).iterator();
+        while (dates.hasNext()) {
+            final LocalDate date = dates.next();
+            if (date.isAfter(schedule.until)) {
+                break;
+            }
+            if (date.isAfter(changed) && schedule.dates.contains(date)) {
+                resync = date;
+                break;
+            }
+            fresh.add(date);
+        }
+
+        final NavigableSet<LocalDate> stale = (resync == null)
+                ? schedule.dates.subSet(restart, true, schedule.until, true)
+                : schedule.dates.subSet(restart, true, resync, false);
+        diff(schedule, new ArrayList<>(stale), fresh, changes);
+        stale.clear();
+        schedule.dates.addAll(fresh);
+        return resync == null ? schedule.until : resync;
+    }
+
+    /**
+     * Dates only in the old list are paired up in order with dates only in the new
+     * list, since that's what a filter moving due dates around looks like.
+     */
+    private void diff(Tracked schedule, List<LocalDate> before, List<LocalDate> after, List<DueDateChange<K>> changes) {
+        final List<LocalDate> gone = new ArrayList<>(before);
+        gone.removeAll(after);
+        final List<LocalDate> arrived = new ArrayList<>(after);
+        arrived.removeAll(before);
+        for (int i = 0; i < Math.max(gone.size(), arrived.size()); i++) {
+            final LocalDate oldDate = i < gone.size() ? gone.get(i) : null;
+            final LocalDate newDate = i < arrived.size() ? arrived.get(i) : null;
+            changes.add(new DueDateChange<>(schedule.key, schedule.policy, oldDate, newDate));
+        }
+    }
+
+    private static List<LocalDate> evaluate(BillingPolicy policy, LocalDate from, LocalDate until) {
+        final List<LocalDate> dates = new ArrayList<>();
+        final Iterator<LocalDate> upcoming = policy.upcomingDueDates(from).iterator();
+        while (upcoming.hasNext()) {
+            final LocalDate date = upcoming.next();
+            if (date.isAfter(until)) {
+                break;
+            }
+            dates.add(date);
+        }
+        return dates;
+    }
+
+    /**
+     * Stop listening to calendars and forget everything.
+     */
+    @Override
+    public synchronized void close() {
+        dependents.keySet().forEach(calendar -> calendar.removeListener(this));
+        dependents.clear();
+        followed.keySet().forEach(registry -> registry.removeListener(this));
+        followed.clear();
+        tracked.clear();
+    }
+
+    private final class Tracked {
+        private final K key;
+        private final BillingPolicy policy;
+        private final LocalDate from;
+        private final LocalDate until;
+        private final Period lookBack;
+        private final TreeSet<LocalDate> dates = new TreeSet<>();
+        private Set<HolidayCalendar> calendars = Collections.emptySet();
+        private String description;
+
+        Tracked(K key, BillingPolicy policy, LocalDate from, LocalDate until) {
+            this.key = key;
+            this.policy = policy;
+            this.from = from;
+            this.until = until;
+            this.lookBack = policy.getCycleType().getPeriod();
+        }
+    }
+}
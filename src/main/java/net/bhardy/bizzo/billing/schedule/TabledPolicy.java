@@ -0,0 +1,193 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.schedule;
+
+import net.bhardy.bizzo.billing.BillingPolicy;
+import net.bhardy.bizzo.billing.CycleType;
+import net.bhardy.bizzo.billing.HolidayCalendar;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A policy answering from a precomputed bitset inside its range, and from the
+ * live policy outside it.
+ * <p>
+ * Only absolute reads are made on the shared buffer, so any number of threads
+ * can use the same one.
+ *
+ * @see ScheduleTables
+ */
+final class TabledPolicy implements BillingPolicy {
+    private final BillingPolicy live;
+    private final ByteBuffer data;
+    private final int offset;
+    private final long firstEpochDay;
+    private final int dayCount;
+    private final int lastDue;
+
+    TabledPolicy(BillingPolicy live, ByteBuffer data, int offset, long firstEpochDay, int dayCount) {
+        this.live = live;
+        this.data = data;
+        this.offset = offset;
+        this.firstEpochDay = firstEpochDay;
+        this.dayCount = dayCount;
+        this.lastDue = findLastDue();
+    }
+
+    @Override
+    public boolean isDueOn(LocalDate day) {
+        final long index = day.toEpochDay() - firstEpochDay;
+        if (index < 0 || index >= dayCount) {
+            return live.isDueOn(day);
+        }
+        return isSet((int) index);
+    }
+
+    /**
+     * The table holds the days the policy is due, but the live stream from a day
+     * can differ from those near its start: a date moved forward from before the
+     * day isn't included, and a date moved back isn't blocked by one before it.
+     * So this follows the live stream until it gives a day that's due in the
+     * table, after which the two agree, and walks the bitset from there. Then it
+     * hands over to the live policy restarted just after the last precomputed due
+     * date, which leaves any filters in exactly the state they'd have been in had
+     * it been running all along.
+     */
+    @Override
+    public Stream<LocalDate> upcomingDueDates(LocalDate day) {
+        final long start = day.toEpochDay() - firstEpochDay;
+        if (start < 0 || start >= dayCount) {
+            return live.upcomingDueDates(day);
+        }
+        return StreamSupport.stream(new Served(live.upcomingDueDates(day).iterator()), false);
+    }
+
+    @Override
+    public Stream<LocalDate> dueDatesStartedBefore(LocalDate day, LocalDate cutOff) {
+        return live.dueDatesStartedBefore(day, cutOff);
+    }
+
+    @Override
+    public CycleType getCycleType() {
+        return live.getCycleType();
+    }
+
+    @Override
+    public Set<HolidayCalendar> calendars() {
+        return live.calendars();
+    }
+
+    @Override
+    public String describe() {
+        return live.describe();
+    }
+
+    private boolean isSet(int index) {
+        return (word(index >>> 6) & (1L << index)) != 0;
+    }
+
+    private long word(int wordIndex) {
+        return data.getLong(offset + wordIndex * Long.BYTES);
+    }
+
+    /**
+     * @return the index of the last due day in the table, or -1 if there isn't one.
+     */
+    private int findLastDue() {
+        for (int wordIndex = (dayCount - 1) >>> 6; wordIndex >= 0; wordIndex--) {
+            final long bits = word(wordIndex);
+            if (bits != 0) {
+                return wordIndex * Long.SIZE + Long.SIZE - 1 - Long.numberOfLeadingZeros(bits);
+            }
+        }
+        return -1;
+    }
+
+    private final class Served extends Spliterators.AbstractSpliterator<LocalDate> {
+        private Iterator<LocalDate> following;
+        private DueDays tabled;
+        private Iterator<LocalDate> after;
+
+        Served(Iterator<LocalDate> following) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL);
+            this.following = following;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super LocalDate> action) {
+            if (following != null) {
+                if (!following.hasNext()) {
+                    return false;
+                }
+                final LocalDate date = following.next();
+                final long index = date.toEpochDay() - firstEpochDay;
+                if (index >= 0 && index < dayCount && isSet((int) index)) {
+                    following = null;
+                    tabled = new DueDays((int) index + 1);
+                }
+                action.accept(date);
+                return true;
+            }
+            if (tabled.tryAdvance(action)) {
+                return true;
+            }
+            if (after == null) {
+                final LocalDate lastTabled = LocalDate.ofEpochDay(firstEpochDay + dayCount - 1);
+                after = live.upcomingDueDates(LocalDate.ofEpochDay(firstEpochDay + lastDue + 1))
+                        .filter(date -> date.isAfter(lastTabled))
+                        .iterator();
+            }
+            if (!after.hasNext()) {
+                return false;
+            }
+            action.accept(after.next());
+            return true;
+        }
+    }
+
+    private final class DueDays extends Spliterators.AbstractSpliterator<LocalDate> {
+        private int next;
+
+        DueDays(int start) {
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL);
+            this.next = start;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super LocalDate> action) {
+            while (next < dayCount) {
+                final int wordIndex = next >>> 6;
+                final long bits = word(wordIndex) & (-1L << next);
+                if (bits != 0) {
+                    final int found = wordIndex * Long.SIZE + Long.numberOfTrailingZeros(bits);
+                    next = found + 1;
+                    action.accept(LocalDate.ofEpochDay(firstEpochDay + found));
+                    return true;
+                }
+                next = (wordIndex + 1) * Long.SIZE;
+            }
+            return false;
+        }
+    }
+}
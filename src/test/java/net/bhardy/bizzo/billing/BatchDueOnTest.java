@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import static java.time.DayOfWeek.SATURDAY;
+import static java.time.DayOfWeek.SUNDAY;
+import static java.time.DayOfWeek.WEDNESDAY;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.NEXT_DAY;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.PREVIOUS_DAY;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.SKIP;
+import static net.bhardy.bizzo.billing.PolicyFilter.daysOfWeek;
+import static net.bhardy.bizzo.billing.PolicyFilter.not;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BatchDueOnTest {
+    private static final LocalDate from = LocalDate.of(2016, 12, 20);
+    private static final int days = 400;
+
+    private final List<BillingPolicy> policies = Arrays.asList(
+            BillingPolicy.builder().daily().build(),
+            BillingPolicy.builder().weeklyOnDay(WEDNESDAY).build(),
+            BillingPolicy.builder().monthlyOnDay(31).build(),
+            BillingPolicy.builder().monthlyOnDay(1).filter(not(daysOfWeek(SATURDAY, SUNDAY))).action(SKIP).build(),
+            BillingPolicy.builder().monthlyOnDay(15).filter(not(daysOfWeek(SATURDAY, SUNDAY))).action(NEXT_DAY).build(),
+            BillingPolicy.builder().weeklyOnDay(SUNDAY).filter(not(daysOfWeek(SUNDAY))).action(PREVIOUS_DAY).build()
+    );
+
+    @Test
+    public void rangeMatchesDayByDay() {
+        for (BillingPolicy policy : policies) {
+            boolean[] batch = new boolean[days];
+            policy.isDueOn(from, batch);
+
+            assertArrayEquals(policy.describe(), dayByDay(policy), batch);
+        }
+    }
+
+    @Test
+    public void scatteredDaysMatchDayByDay() {
+        int[] epochDays = {
+                (int) from.toEpochDay() + 300, (int) from.toEpochDay(), (int) from.toEpochDay() + 11,
+                (int) from.toEpochDay() + 12, (int) from.toEpochDay() + 11, (int) from.toEpochDay() + 399
+        };
+        for (BillingPolicy policy : policies) {
+            boolean[] expected = dayByDay(policy);
+            boolean[] batch = new boolean[epochDays.length];
+            policy.isDueOn(epochDays, batch);
+
+            for (int i = 0; i < epochDays.length; i++) {
+                assertEquals(policy.describe(), expected[(int) (epochDays[i] - from.toEpochDay())], batch[i]);
+            }
+        }
+    }
+
+    @Test
+    public void everyDayMatchesDayByDay() {
+        int[] epochDays = new int[days];
+        for (int i = 0; i < days; i++) {
+            epochDays[i] = (int) from.toEpochDay() + i;
+        }
+        for (BillingPolicy policy : policies) {
+            boolean[] batch = new boolean[days];
+            policy.isDueOn(epochDays, batch);
+
+            assertArrayEquals(policy.describe(), dayByDay(policy), batch);
+        }
+    }
+
+    @Test
+    public void monthCyclesClampToShortMonths() {
+        List<BillingPolicy> monthCycles = Arrays.asList(
+                BillingPolicy.builder().monthlyOnDay(29).build(),
+                BillingPolicy.builder().monthlyOnDay(30).build(),
+                BillingPolicy.builder().monthlyOnLastDay().build(),
+                BillingPolicy.builder().bimonthly(LocalDate.of(2015, 1, 30)).build(),
+                BillingPolicy.builder().quarterly(LocalDate.of(2016, 2, 29)).build(),
+                BillingPolicy.builder().annually(LocalDate.of(2016, 2, 29)).build(),
+                BillingPolicy.builder().cycleOnLastDayOfMonth(CycleType.SEMIANNUALLY, YearMonth.of(2015, 8)).build()
+        );
+        LocalDate start = LocalDate.of(2015, 1, 1);
+        int[] epochDays = new int[(int) (LocalDate.of(2021, 1, 1).toEpochDay() - start.toEpochDay())];
+        for (int i = 0; i < epochDays.length; i++) {
+            epochDays[i] = (int) start.toEpochDay() + i;
+        }
+        for (BillingPolicy policy : monthCycles) {
+            boolean[] batch = new boolean[epochDays.length];
+            policy.isDueOn(epochDays, batch);
+
+            for (int i = 0; i < epochDays.length; i++) {
+                assertEquals(policy.describe() + " " + start.plusDays(i), policy.isDueOn(start.plusDays(i)), batch[i]);
+            }
+        }
+        boolean[] leapDays = new boolean[2];
+        monthCycles.get(5).isDueOn(new int[] {
+                (int) LocalDate.of(2017, 2, 28).toEpochDay(), (int) LocalDate.of(2020, 2, 29).toEpochDay() }, leapDays);
+        assertArrayEquals(new boolean[] { true, true }, leapDays);
+    }
+
+    @Test
+    public void farApartDaysMatchDayByDay() {
+        BillingPolicy policy = policies.get(4);
+        LocalDate later = from.plusYears(30);
+        int[] epochDays = { (int) from.toEpochDay() + 26, (int) later.toEpochDay() };
+        boolean[] batch = new boolean[epochDays.length];
+        policy.isDueOn(epochDays, batch);
+
+        assertEquals(policy.isDueOn(from.plusDays(26)), batch[0]);
+        assertEquals(policy.isDueOn(later), batch[1]);
+    }
+
+    @Test
+    public void dueDaysSetsABitPerDueDay() {
+        BitSet bits = policies.get(1).dueDays(from, 14);
+
+        assertEquals(2, bits.cardinality());
+        assertEquals(from.plusDays(1), from.plusDays(bits.nextSetBit(0)));
+    }
+
+    @Test
+    public void manyPoliciesOnOneDay() {
+        LocalDate day = LocalDate.of(2017, 1, 31);
+        List<BillingPolicy> accounts = Arrays.asList(policies.get(2), policies.get(1), policies.get(2), policies.get(0));
+        boolean[] due = new boolean[accounts.size()];
+        BillingPolicy.areDueOn(accounts, day, due);
+
+        assertArrayEquals(new boolean[] { true, false, true, true }, due);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void answersMustFit() {
+        policies.get(0).isDueOn(new int[3], new boolean[2]);
+    }
+
+    private static boolean[] dayByDay(BillingPolicy policy) {
+        boolean[] expected = new boolean[days];
+        for (int i = 0; i < days; i++) {
+            expected[i] = policy.isDueOn(from.plusDays(i));
+        }
+        return expected;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static java.time.DayOfWeek.FRIDAY;
+import static java.time.DayOfWeek.SATURDAY;
+import static java.time.DayOfWeek.SUNDAY;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.NEXT_DAY;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.PREVIOUS_DAY;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.SKIP;
+import static net.bhardy.bizzo.billing.PolicyFilter.daysOfWeek;
+import static net.bhardy.bizzo.billing.PolicyFilter.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BillingPeriodTest {
+    private static final PolicyFilter weekdays = not(daysOfWeek(SATURDAY, SUNDAY));
+
+    private final List<BillingPolicy> policies = Arrays.asList(
+            BillingPolicy.builder().daily().build(),
+            BillingPolicy.builder().weeklyOnDay(FRIDAY).build(),
+            BillingPolicy.builder().biweekly(LocalDate.of(2017, 8, 4)).build(),
+            BillingPolicy.builder().monthlyOnDay(31).build(),
+            BillingPolicy.builder().quarterly(LocalDate.of(2016, 2, 29)).build(),
+            BillingPolicy.builder().annually(LocalDate.of(2016, 2, 29)).build(),
+            BillingPolicy.builder().monthlyOnDay(1).filter(weekdays).action(SKIP).build(),
+            BillingPolicy.builder().monthlyOnDay(15).filter(weekdays).action(NEXT_DAY).build(),
+            BillingPolicy.builder().monthlyOnLastDay().filter(weekdays).action(PREVIOUS_DAY).build(),
+            PolicyTimeline.builder()
+                    .from(LocalDate.of(2000, 1, 1), BillingPolicy.builder().weeklyOnDay(FRIDAY).build())
+                    .from(LocalDate.of(2017, 3, 1), BillingPolicy.builder().monthlyOnDay(1).build())
+                    .build()
+    );
+
+    @Test
+    public void shortMonthsEndTheirPeriodsEarly() {
+        BillingPolicy policy = policies.get(3);
+        long period = policy.periodContaining(LocalDate.of(2017, 2, 15).toEpochDay());
+
+        assertEquals(LocalDate.of(2017, 1, 31).toEpochDay(), BillingPeriod.startOf(period));
+        assertEquals(LocalDate.of(2017, 2, 28).toEpochDay(), BillingPeriod.endOf(period));
+    }
+
+    @Test
+    public void fillsAHolder() {
+        BillingPeriod period = new BillingPeriod();
+        assertFalse(period.contains(0));
+
+        policies.get(2).periodContaining(LocalDate.of(2017, 8, 17), period);
+
+        assertEquals(LocalDate.of(2017, 8, 4), period.getStart());
+        assertEquals(LocalDate.of(2017, 8, 18), period.getEnd());
+        assertEquals(14, period.lengthInDays());
+        assertTrue(period.contains(LocalDate.of(2017, 8, 4).toEpochDay()));
+        assertFalse(period.contains(LocalDate.of(2017, 8, 18).toEpochDay()));
+        assertEquals("[2017-08-04, 2017-08-18)", period.toString());
+    }
+
+    @Test
+    public void agreesWithTheDueDatesForEveryDay() {
+        LocalDate from = LocalDate.of(2016, 6, 1);
+        LocalDate until = LocalDate.of(2018, 6, 1);
+        for (BillingPolicy policy : policies) {
+            List<Long> due = policy.upcomingDueDates(from.minusYears(2)).limit(2000)
+                    .map(LocalDate::toEpochDay)
+                    .filter(day -> day < until.plusYears(2).toEpochDay())
+                    .collect(Collectors.toList());
+            for (LocalDate day = from; day.isBefore(until); day = day.plusDays(1)) {
+                assertEquals(policy.describe() + " " + day, expected(due, day.toEpochDay()),
+                        policy.periodContaining(day.toEpochDay()));
+            }
+        }
+    }
+
+    @Test
+    public void sortedBatchMatchesOneAtATime() {
+        Random random = new Random(35);
+        int[] days = new int[5000];
+        int day = (int) LocalDate.of(2016, 1, 1).toEpochDay();
+        for (int i = 0; i < days.length; i++) {
+            // mostly close together, now and then a long way ahead
+            day += random.nextInt(20) == 0 ? random.nextInt(2000) : random.nextInt(3);
+            days[i] = day;
+        }
+        for (BillingPolicy policy : policies) {
+            long[] periods = new long[days.length];
+            policy.periodsContaining(days, periods);
+
+            for (int i = 0; i < days.length; i++) {
+                assertEquals(policy.describe() + " " + LocalDate.ofEpochDay(days[i]),
+                        policy.periodContaining(days[i]), periods[i]);
+            }
+        }
+    }
+
+    @Test
+    public void farFromToday() {
+        BillingPolicy policy = policies.get(5);
+        long period = policy.periodContaining(LocalDate.of(-1601, 3, 1).toEpochDay());
+
+        assertEquals(LocalDate.of(-1601, 2, 28).toEpochDay(), BillingPeriod.startOf(period));
+        assertEquals(LocalDate.of(-1600, 2, 29).toEpochDay(), BillingPeriod.endOf(period));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void batchMustBeSorted() {
+        policies.get(0).periodsContaining(new int[] { 2, 1 }, new long[2]);
+    }
+
+    private static long expected(List<Long> due, long day) {
+        for (int i = 1; i < due.size(); i++) {
+            if (due.get(i) > day) {
+                return BillingPeriod.pack(due.get(i - 1), due.get(i));
+            }
+        }
+        throw new AssertionError("not enough due dates");
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CyclePolicyTest {
+    private static final LocalDate jan31st = LocalDate.of(2016, 1, 31);
+
+    @Test
+    public void monthlyOnDayClampsToShortMonths() {
+        BillingPolicy policy = BillingPolicy.builder().monthlyOnDay(31).build();
+
+        assertEquals(dates("2016-01-31", "2016-02-29", "2016-03-31", "2016-04-30"), first(policy, jan31st, 4));
+        assertTrue(policy.isDueOn(LocalDate.of(2017, 2, 28)));
+        assertFalse(policy.isDueOn(LocalDate.of(2017, 3, 30)));
+    }
+
+    @Test
+    public void monthlyOnLastDay() {
+        BillingPolicy policy = BillingPolicy.builder().monthlyOnLastDay().build();
+
+        assertEquals(dates("2016-02-29", "2016-03-31"), first(policy, jan31st.plusDays(1), 2));
+    }
+
+    @Test
+    public void biweeklyCountsFromTheAnchor() {
+        BillingPolicy policy = BillingPolicy.builder().biweekly(LocalDate.of(2017, 8, 4)).build();
+
+        assertEquals(dates("2017-07-21", "2017-08-04", "2017-08-18"), first(policy, LocalDate.of(2017, 7, 10), 3));
+        assertTrue(policy.isDueOn(LocalDate.of(2017, 7, 7)));
+        assertFalse(policy.isDueOn(LocalDate.of(2017, 7, 14)));
+        assertEquals(CycleType.BIWEEKLY, policy.getCycleType());
+    }
+
+    @Test
+    public void quarterlyFromTheEndOfAMonthClamps() {
+        BillingPolicy policy = BillingPolicy.builder().quarterly(LocalDate.of(2017, 5, 31)).build();
+
+        assertEquals(dates("2017-02-28", "2017-05-31", "2017-08-31", "2017-11-30"),
+                first(policy, LocalDate.of(2017, 1, 1), 4));
+        assertTrue(policy.isDueOn(LocalDate.of(2016, 11, 30)));
+        assertFalse(policy.isDueOn(LocalDate.of(2016, 12, 31)));
+    }
+
+    @Test
+    public void annuallyOnALeapDay() {
+        BillingPolicy policy = BillingPolicy.builder().annually(LocalDate.of(2016, 2, 29)).build();
+
+        assertEquals(dates("2017-02-28", "2018-02-28", "2019-02-28", "2020-02-29"),
+                first(policy, LocalDate.of(2016, 3, 1), 4));
+    }
+
+    @Test
+    public void semiannuallyOnTheLastDayOfTheMonth() {
+        BillingPolicy policy = BillingPolicy.builder()
+                .cycleOnLastDayOfMonth(CycleType.SEMIANNUALLY, YearMonth.of(2017, 2))
+                .build();
+
+        assertEquals(dates("2017-02-28", "2017-08-31", "2018-02-28"), first(policy, LocalDate.of(2017, 2, 28), 3));
+    }
+
+    @Test
+    public void upcomingAgreesWithIsDueOnForEveryCycle() {
+        LocalDate from = LocalDate.of(2015, 12, 15);
+        for (CycleType cycleType : CycleType.values()) {
+            BillingPolicy policy = BillingPolicy.builder().cycle(cycleType, jan31st).build();
+            List<LocalDate> upcoming = first(policy, from, 1200).stream()
+                    .filter(date -> date.isBefore(from.plusYears(3)))
+                    .collect(Collectors.toList());
+            boolean[] due = new boolean[(int) (from.plusYears(3).toEpochDay() - from.toEpochDay())];
+            policy.isDueOn(from, due);
+
+            for (int i = 0; i < due.length; i++) {
+                LocalDate day = from.plusDays(i);
+                assertEquals(cycleType + " " + day, upcoming.contains(day), policy.isDueOn(day));
+                assertEquals(cycleType + " " + day, policy.isDueOn(day), due[i]);
+            }
+        }
+    }
+
+    @Test
+    public void batchOfScatteredDays() {
+        BillingPolicy policy = BillingPolicy.builder().biweekly(LocalDate.of(2017, 8, 4)).build();
+        int[] days = { (int) LocalDate.of(2017, 8, 18).toEpochDay(), (int) LocalDate.of(2017, 8, 19).toEpochDay() };
+        boolean[] due = new boolean[2];
+        policy.isDueOn(days, due);
+
+        assertArrayEquals(new boolean[] { true, false }, due);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void lastDayOfMonthNeedsAMonthCycle() {
+        BillingPolicy.builder().cycleOnLastDayOfMonth(CycleType.WEEKLY, YearMonth.of(2017, 2));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noThirtySecondDay() {
+        BillingPolicy.builder().monthlyOnDay(32);
+    }
+
+    private static List<LocalDate> first(BillingPolicy policy, LocalDate from, int count) {
+        return policy.upcomingDueDates(from).limit(count).collect(Collectors.toList());
+    }
+
+    private static List<LocalDate> dates(String... dates) {
+        return Arrays.stream(dates).map(LocalDate::parse).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing;
+
+import net.bhardy.bizzo.billing.metrics.InMemoryPolicyMetrics;
+import net.bhardy.bizzo.billing.schedule.ScheduleTables;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static java.time.DayOfWeek.SATURDAY;
+import static java.time.DayOfWeek.SUNDAY;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.NEXT_DAY;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.SKIP;
+import static net.bhardy.bizzo.billing.PolicyFilter.and;
+import static net.bhardy.bizzo.billing.PolicyFilter.daysOfWeek;
+import static net.bhardy.bizzo.billing.PolicyFilter.not;
+import static net.bhardy.bizzo.billing.metrics.PolicyMetrics.Counter.FILTER_EVALUATIONS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FilterRegistryTest {
+    private static final LocalDate tuesday1st = LocalDate.of(2017, 8, 1);
+    private static final LocalDate friday1st = LocalDate.of(2017, 9, 1);
+
+    private final HolidayCalendar holidays = new HolidayCalendar("holidays", Collections.singleton(friday1st));
+    private final FilterRegistry registry = new FilterRegistry();
+    private final BillingPolicy policy = BillingPolicy.builder()
+            .withRegistry(registry)
+            .monthlyOnDay(1)
+            .filter("workdays")
+            .action(NEXT_DAY)
+            .build();
+
+    @Test
+    public void policiesSeeReplacedFilters() {
+        registry.put("workdays", not(daysOfWeek(SATURDAY, SUNDAY)));
+        assertTrue(policy.isDueOn(friday1st));
+
+        registry.put("workdays", and(not(daysOfWeek(SATURDAY, SUNDAY)), not(holidays)));
+        assertFalse(policy.isDueOn(friday1st));
+        assertTrue(policy.isDueOn(friday1st.plusDays(3)));
+        assertEquals(Collections.singleton(holidays), policy.calendars());
+    }
+
+    @Test
+    public void pinnedThreadsKeepTheirVersion() {
+        registry.put("workdays", not(daysOfWeek(SATURDAY, SUNDAY)));
+
+        try (FilterRegistry.Pin outer = registry.pin()) {
+            registry.put("workdays", not(holidays));
+            assertTrue(policy.isDueOn(friday1st));
+
+            try (FilterRegistry.Pin inner = registry.pin()) {
+                assertFalse(policy.isDueOn(friday1st));
+                assertEquals(2, inner.getSnapshot().getVersion());
+            }
+            assertTrue(policy.isDueOn(friday1st));
+            assertEquals(1, outer.getSnapshot().getVersion());
+        }
+        assertFalse(policy.isDueOn(friday1st));
+    }
+
+    @Test
+    public void calendarsAreCopiedWhenPut() {
+        registry.putCalendar(holidays);
+        holidays.add(Collections.singleton(tuesday1st));
+
+        PolicyFilter stored = registry.snapshot().get("holidays").get();
+        assertFalse(stored.applies(tuesday1st));
+        assertTrue(stored.applies(friday1st));
+        assertTrue(registry.ref("holidays").applies(friday1st));
+    }
+
+    @Test
+    public void eachChangeIsANewVersion() {
+        assertEquals(0, registry.snapshot().getVersion());
+        registry.put("a", day -> true);
+        registry.remove("a");
+
+        assertEquals(2, registry.snapshot().getVersion());
+        assertFalse(registry.snapshot().get("a").isPresent());
+    }
+
+    @Test
+    public void instrumentedPoliciesKeepTheFiltersCalendars() {
+        registry.put("open", not(holidays));
+        InMemoryPolicyMetrics metrics = new InMemoryPolicyMetrics();
+        BillingPolicy counted = BillingPolicy.builder()
+                .withRegistry(registry)
+                .withMetrics(metrics)
+                .monthlyOnDay(1)
+                .filter("open")
+                .action(SKIP)
+                .build();
+
+        assertFalse(counted.isDueOn(friday1st));
+        assertEquals(Collections.singleton(holidays), counted.calendars());
+        assertTrue(metrics.count(FILTER_EVALUATIONS) > 0);
+        assertTrue(counted.describe(), counted.describe().contains("ref(open="));
+    }
+
+    @Test
+    public void compositesFollowTheCalendarsTheirReferencesUse() {
+        BillingPolicy workdays = BillingPolicy.builder()
+                .monthlyOnDay(1)
+                .filter(and(not(registry.ref("holidays")), not(daysOfWeek(SATURDAY, SUNDAY))))
+                .action(NEXT_DAY)
+                .build();
+        assertTrue(workdays.calendars().isEmpty());
+
+        registry.putCalendar(holidays);
+        HolidayCalendar stored = (HolidayCalendar) registry.snapshot().get("holidays").get();
+        assertEquals(Collections.singleton(stored), workdays.calendars());
+        long hash = ScheduleTables.structureHash(workdays).getAsLong();
+
+        holidays.add(Collections.singleton(tuesday1st));
+        registry.putCalendar(holidays);
+        assertNotEquals(hash, ScheduleTables.structureHash(workdays).getAsLong());
+    }
+
+    @Test
+    public void listenersHearAboutEveryVersion() {
+        List<Long> versions = new ArrayList<>();
+        registry.addListener((changed, published) -> versions.add(published.getVersion()));
+
+        registry.putCalendar(holidays);
+        registry.remove("holidays");
+
+        assertEquals(Arrays.asList(1L, 2L), versions);
+    }
+
+    @Test
+    public void missingFiltersFailWhenApplied() {
+        assertTrue(policy.calendars().isEmpty());
+        try {
+            policy.isDueOn(tuesday1st);
+            fail("applied a filter that isn't registered");
+        } catch (IllegalStateException expected) {
+            assertTrue(expected.getMessage().contains("workdays"));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void namedFiltersNeedARegistry() {
+        BillingPolicy.builder().daily().filter("workdays");
+    }
+}
@@ -16,6 +16,8 @@
 package net.bhardy.bizzo.billing;
 
 import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
 
 import java.time.LocalDate;
 import java.util.List;
@@ -38,6 +40,7 @@ import static org.junit.Assert.assertTrue;
 /**
  *
  */
+@RunWith(Enclosed.class)
 @SuppressWarnings("squid:S1118") // don't care if PolicyBuilderTest constructor is public
 public class PolicyBuilderTest {
     private static final LocalDate friday4th = LocalDate.of(2017, 8, 4);
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing;
+
+import net.bhardy.bizzo.billing.impl.CompositeFilter;
+import org.junit.Test;
+import org.junit.experimental.runners.Enclosed;
+import org.junit.runner.RunWith;
+
+import java.time.LocalDate;
+
+import static java.time.DayOfWeek.SATURDAY;
+import static java.time.DayOfWeek.SUNDAY;
+import static net.bhardy.bizzo.billing.PolicyFilter.and;
+import static net.bhardy.bizzo.billing.PolicyFilter.daysOfWeek;
+import static net.bhardy.bizzo.billing.PolicyFilter.not;
+import static net.bhardy.bizzo.billing.PolicyFilter.or;
+import static net.bhardy.bizzo.billing.PolicyFilter.withHints;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ */
+@RunWith(Enclosed.class)
+@SuppressWarnings("squid:S1118") // don't care if PolicyFilterTest constructor is public
+public class PolicyFilterTest {
+    private static final LocalDate saturday5th = LocalDate.of(2017, 8, 5);
+    private static final LocalDate monday7th = LocalDate.of(2017, 8, 7);
+
+    public static class Hints {
+        @Test
+        public void daysOfWeekIsCheap() {
+            PolicyFilter weekend = daysOfWeek(SATURDAY, SUNDAY);
+
+            assertEquals(PolicyFilter.CHEAP_COST, weekend.costHint(), 0.0);
+            assertEquals(2.0 / 7, weekend.passRateHint(), 1e-9);
+            assertEquals(5.0 / 7, not(weekend).passRateHint(), 1e-9);
+        }
+
+        @Test
+        public void compositesCombineHints() {
+            PolicyFilter half = withHints(day -> true, 3, 0.5);
+            PolicyFilter quarter = withHints(day -> true, 5, 0.25);
+
+            assertEquals(8.0, and(half, quarter).costHint(), 1e-9);
+            assertEquals(0.125, and(half, quarter).passRateHint(), 1e-9);
+            assertEquals(0.625, or(half, quarter).passRateHint(), 1e-9);
+        }
+
+        @Test(expected = IllegalArgumentException.class)
+        public void passRateMustBeAFraction() {
+            withHints(day -> true, 1, 1.5);
+        }
+    }
+
+    public static class Composites {
+        @Test
+        public void andRequiresAll() {
+            PolicyFilter weekdayNotSeventh = and(not(daysOfWeek(SATURDAY, SUNDAY)), day -> day.getDayOfMonth() != 7);
+
+            assertFalse(weekdayNotSeventh.applies(saturday5th));
+            assertFalse(weekdayNotSeventh.applies(monday7th));
+            assertTrue(weekdayNotSeventh.applies(monday7th.plusDays(1)));
+        }
+
+        @Test
+        public void orRequiresAny() {
+            PolicyFilter weekendOrSeventh = or(daysOfWeek(SATURDAY, SUNDAY), day -> day.getDayOfMonth() == 7);
+
+            assertTrue(weekendOrSeventh.applies(saturday5th));
+            assertTrue(weekendOrSeventh.applies(monday7th));
+            assertFalse(weekendOrSeventh.applies(monday7th.plusDays(1)));
+        }
+
+        @Test
+        public void lambdasCantBeDescribed() {
+            PolicyFilter weekend = daysOfWeek(SATURDAY, SUNDAY);
+
+            assertEquals("or(daysOfWeek(SATURDAY,SUNDAY),not(daysOfWeek(SATURDAY,SUNDAY)))",
+                    or(weekend, not(weekend)).describe());
+            assertNull(and(weekend, day -> true).describe());
+            assertNull(not(day -> true).describe());
+        }
+
+        @Test
+        public void hintsDecideInitialOrder() {
+            PolicyFilter expensive = withHints(day -> true, 100, 0.1);
+            PolicyFilter cheap = withHints(day -> true, 1, 0.1);
+
+            CompositeFilter both = (CompositeFilter) and(expensive, cheap);
+
+            assertSame(cheap, both.currentOrder()[0]);
+        }
+
+        @Test
+        public void learnsToTryTheDecisiveFilterFirst() {
+            // hints say the rarely failing filter is the better first check, but it isn't
+            PolicyFilter rarelyFails = withHints(day -> day.getDayOfMonth() != 13, 1, 0.01);
+            PolicyFilter oftenFails = withHints(day -> day.getDayOfMonth() <= 3, 1, 0.99);
+            CompositeFilter both = (CompositeFilter) and(oftenFails, rarelyFails);
+            assertSame(rarelyFails, both.currentOrder()[0]);
+
+            LocalDate day = saturday5th;
+            for (int i = 0; i < 200_000; i++) {
+                both.applies(day);
+                day = day.plusDays(1);
+            }
+
+            assertSame(oftenFails, both.currentOrder()[0]);
+        }
+    }
+}
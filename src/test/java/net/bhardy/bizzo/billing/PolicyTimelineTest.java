@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing;
+
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.time.DayOfWeek.FRIDAY;
+import static java.time.DayOfWeek.MONDAY;
+import static java.time.DayOfWeek.SATURDAY;
+import static java.time.DayOfWeek.SUNDAY;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.NEXT_DAY;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.PREVIOUS_DAY;
+import static net.bhardy.bizzo.billing.PolicyFilter.daysOfWeek;
+import static net.bhardy.bizzo.billing.PolicyFilter.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PolicyTimelineTest {
+    private static final LocalDate march1st = LocalDate.of(2017, 3, 1);
+
+    private final BillingPolicy mondays = BillingPolicy.builder().weeklyOnDay(MONDAY).build();
+    private final BillingPolicy firstOfMonth = BillingPolicy.builder().monthlyOnDay(1).build();
+
+    @Test
+    public void handsOverAtTheEffectiveDate() {
+        PolicyTimeline timeline = PolicyTimeline.builder()
+                .from(LocalDate.of(2017, 1, 1), mondays)
+                .from(march1st, firstOfMonth)
+                .build();
+
+        assertEquals(dates("2017-02-20", "2017-02-27", "2017-03-01", "2017-04-01"),
+                first(timeline, LocalDate.of(2017, 2, 15), 4));
+        assertFalse(timeline.isDueOn(LocalDate.of(2017, 3, 6)));
+        assertTrue(timeline.isDueOn(LocalDate.of(2017, 2, 27)));
+        assertEquals(CycleType.MONTHLY, timeline.getCycleType());
+    }
+
+    @Test
+    public void nothingIsDueBeforeTheFirstSegment() {
+        PolicyTimeline timeline = PolicyTimeline.builder().from(march1st, mondays).build();
+
+        assertFalse(timeline.policyOn(march1st.minusDays(1)).isPresent());
+        assertSame(mondays, timeline.policyOn(march1st).get());
+        assertFalse(timeline.isDueOn(LocalDate.of(2017, 2, 27)));
+        assertEquals(LocalDate.of(2017, 3, 6), first(timeline, LocalDate.of(2017, 1, 1), 1).get(0));
+    }
+
+    @Test
+    public void dateMovedForwardAcrossTheHandoverIsKept() {
+        // the 25th of November 2017 is a Saturday, so it moves to Monday the 27th
+        BillingPolicy payDay = BillingPolicy.builder()
+                .monthlyOnDay(25)
+                .filter(not(daysOfWeek(SATURDAY, SUNDAY)))
+                .action(NEXT_DAY)
+                .build();
+        PolicyTimeline timeline = PolicyTimeline.builder()
+                .from(LocalDate.of(2017, 1, 1), payDay)
+                .from(LocalDate.of(2017, 11, 26), BillingPolicy.builder().weeklyOnDay(FRIDAY).build())
+                .build();
+
+        assertEquals(dates("2017-10-25", "2017-11-27", "2017-12-01", "2017-12-08"),
+                first(timeline, LocalDate.of(2017, 10, 1), 4));
+        assertTrue(timeline.isDueOn(LocalDate.of(2017, 11, 27)));
+    }
+
+    @Test
+    public void dailyDateMovedForwardAcrossTheHandoverIsKept() {
+        // Saturday the 25th moves to Monday the 27th, which is also due from a day after the handover
+        BillingPolicy workdays = BillingPolicy.builder()
+                .daily()
+                .filter(not(daysOfWeek(SATURDAY, SUNDAY)))
+                .action(NEXT_DAY)
+                .build();
+        LocalDate handover = LocalDate.of(2017, 11, 26);
+        PolicyTimeline timeline = PolicyTimeline.builder()
+                .from(LocalDate.of(2017, 1, 1), workdays)
+                .from(handover, BillingPolicy.builder().weeklyOnDay(FRIDAY).build())
+                .build();
+
+        assertEquals(dates("2017-11-22", "2017-11-23", "2017-11-24", "2017-11-27"),
+                workdays.dueDatesStartedBefore(LocalDate.of(2017, 11, 22), handover).collect(Collectors.toList()));
+        assertEquals(dates("2017-11-22", "2017-11-23", "2017-11-24", "2017-11-27", "2017-12-01", "2017-12-08"),
+                first(timeline, LocalDate.of(2017, 11, 22), 6));
+        assertTrue(timeline.isDueOn(LocalDate.of(2017, 11, 27)));
+        assertFalse(timeline.isDueOn(LocalDate.of(2017, 11, 28)));
+    }
+
+    @Test
+    public void dateMovedBackBeforeTheHandoverIsDropped() {
+        BillingPolicy notSundays = BillingPolicy.builder()
+                .weeklyOnDay(SUNDAY)
+                .filter(not(daysOfWeek(SUNDAY)))
+                .action(PREVIOUS_DAY)
+                .build();
+        // the 5th of March 2017 is a Sunday
+        PolicyTimeline timeline = PolicyTimeline.builder()
+                .from(LocalDate.of(2017, 1, 1), firstOfMonth)
+                .from(LocalDate.of(2017, 3, 5), notSundays)
+                .build();
+
+        assertEquals(dates("2017-03-01", "2017-03-11"), first(timeline, LocalDate.of(2017, 2, 15), 2));
+        assertFalse(timeline.isDueOn(LocalDate.of(2017, 3, 4)));
+    }
+
+    @Test
+    public void isDueOnAgreesWithUpcomingAcrossManySegments() {
+        BillingPolicy payDay = BillingPolicy.builder()
+                .monthlyOnDay(15)
+                .filter(not(daysOfWeek(SATURDAY, SUNDAY)))
+                .action(NEXT_DAY)
+                .build();
+        PolicyTimeline timeline = PolicyTimeline.builder()
+                .from(LocalDate.of(2016, 1, 1), mondays)
+                .from(LocalDate.of(2016, 4, 16), payDay)
+                .from(LocalDate.of(2016, 10, 16), firstOfMonth)
+                .from(LocalDate.of(2016, 11, 2), BillingPolicy.builder().biweekly(LocalDate.of(2016, 11, 4)).build())
+                .from(LocalDate.of(2017, 1, 15), payDay)
+                .build();
+        LocalDate from = LocalDate.of(2015, 12, 1);
+        LocalDate until = LocalDate.of(2017, 6, 1);
+        List<LocalDate> upcoming = first(timeline, from, 100).stream()
+                .filter(date -> date.isBefore(until))
+                .collect(Collectors.toList());
+
+        for (LocalDate day = from; day.isBefore(until); day = day.plusDays(1)) {
+            assertEquals(day.toString(), upcoming.contains(day), timeline.isDueOn(day));
+        }
+        // restarting just after any due date carries on where it left off
+        for (int i = 0; i + 1 < upcoming.size(); i++) {
+            assertEquals(upcoming.get(i + 1), first(timeline, upcoming.get(i).plusDays(1), 1).get(0));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void segmentsMustBeInOrder() {
+        PolicyTimeline.builder().from(march1st, mondays).from(march1st, firstOfMonth);
+    }
+
+    private static List<LocalDate> first(BillingPolicy policy, LocalDate from, int count) {
+        return policy.upcomingDueDates(from).limit(count).collect(Collectors.toList());
+    }
+
+    private static List<LocalDate> dates(String... dates) {
+        return Arrays.stream(dates).map(LocalDate::parse).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.metrics;
+
+import net.bhardy.bizzo.billing.BillingPolicy;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import static java.time.DayOfWeek.SATURDAY;
+import static java.time.DayOfWeek.SUNDAY;
+import static java.util.stream.Collectors.toList;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.NEXT_DAY;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.PREVIOUS_DAY;
+import static net.bhardy.bizzo.billing.PolicyFilter.daysOfWeek;
+import static net.bhardy.bizzo.billing.PolicyFilter.not;
+import static net.bhardy.bizzo.billing.metrics.PolicyMetrics.Counter.BASE_DATES_GENERATED;
+import static net.bhardy.bizzo.billing.metrics.PolicyMetrics.Counter.DUE_DATE_STREAMS;
+import static net.bhardy.bizzo.billing.metrics.PolicyMetrics.Counter.FILTER_EVALUATIONS;
+import static net.bhardy.bizzo.billing.metrics.PolicyMetrics.Histogram.IS_DUE_ON_REPLAYED;
+import static net.bhardy.bizzo.billing.metrics.PolicyMetrics.Histogram.NEXT_FREE_DATE_SCAN_DAYS;
+import static net.bhardy.bizzo.billing.metrics.PolicyMetrics.Histogram.PREVIOUS_FREE_DATE_SCAN_DAYS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryPolicyMetricsTest {
+    private static final LocalDate saturday5th = LocalDate.of(2017, 8, 5);
+
+    @Test
+    public void countsNextDayScans() {
+        InMemoryPolicyMetrics metrics = new InMemoryPolicyMetrics();
+        BillingPolicy policy = BillingPolicy.builder()
+                .withMetrics(metrics)
+                .weeklyOnDay(SATURDAY)
+                .filter(not(daysOfWeek(SATURDAY, SUNDAY)))
+                .action(NEXT_DAY)
+                .build();
+
+        List<LocalDate> dates = policy.upcomingDueDates(saturday5th).limit(3).collect(toList());
+
+        assertEquals(3, dates.size());
+        assertEquals(1, metrics.count(DUE_DATE_STREAMS));
+        assertEquals(3, metrics.count(BASE_DATES_GENERATED));
+        // saturday, sunday, monday for each of the three
+        assertEquals(9, metrics.count(FILTER_EVALUATIONS));
+        assertEquals(3, metrics.histogram(NEXT_FREE_DATE_SCAN_DAYS).getCount());
+        assertEquals(3, metrics.histogram(NEXT_FREE_DATE_SCAN_DAYS).getMax());
+    }
+
+    @Test
+    public void countsPreviousDayScans() {
+        InMemoryPolicyMetrics metrics = new InMemoryPolicyMetrics();
+        BillingPolicy policy = BillingPolicy.builder()
+                .withMetrics(metrics)
+                .weeklyOnDay(SUNDAY)
+                .filter(not(daysOfWeek(SATURDAY, SUNDAY)))
+                .action(PREVIOUS_DAY)
+                .build();
+
+        policy.upcomingDueDates(saturday5th.minusDays(1)).limit(2).collect(toList());
+
+        assertEquals(6, metrics.count(FILTER_EVALUATIONS));
+        // sunday, saturday, friday for each of the two
+        assertEquals(6, metrics.histogram(PREVIOUS_FREE_DATE_SCAN_DAYS).getSum());
+    }
+
+    @Test
+    public void recordsIsDueOnReplays() {
+        InMemoryPolicyMetrics metrics = new InMemoryPolicyMetrics();
+        BillingPolicy policy = BillingPolicy.builder()
+                .withMetrics(metrics)
+                .monthlyOnDay(5)
+                .filter(not(daysOfWeek(SATURDAY, SUNDAY)))
+                .action(NEXT_DAY)
+                .build();
+
+        policy.isDueOn(saturday5th);
+
+        assertEquals(1, metrics.histogram(IS_DUE_ON_REPLAYED).getCount());
+        assertTrue(metrics.histogram(IS_DUE_ON_REPLAYED).getMax() > 12);
+    }
+
+    @Test
+    public void onlyTheInstrumentedBuilderReports() {
+        InMemoryPolicyMetrics metrics = new InMemoryPolicyMetrics();
+        BillingPolicy.builder().withMetrics(metrics);
+        BillingPolicy policy = BillingPolicy.builder()
+                .daily()
+                .filter(not(daysOfWeek(SATURDAY, SUNDAY)))
+                .action(NEXT_DAY)
+                .build();
+
+        policy.isDueOn(saturday5th);
+
+        assertEquals(0, metrics.count(FILTER_EVALUATIONS));
+    }
+
+    @Test
+    public void histogramPercentiles() {
+        InMemoryPolicyMetrics metrics = new InMemoryPolicyMetrics();
+        for (int i = 1; i <= 100; i++) {
+            metrics.record(NEXT_FREE_DATE_SCAN_DAYS, i);
+        }
+
+        InMemoryPolicyMetrics.Snapshot snapshot = metrics.histogram(NEXT_FREE_DATE_SCAN_DAYS);
+
+        assertEquals(100, snapshot.getCount());
+        assertEquals(5050, snapshot.getSum());
+        assertEquals(50.5, snapshot.getMean(), 1e-9);
+        assertEquals(63, snapshot.percentile(0.5));
+        assertEquals(100, snapshot.percentile(0.99));
+
+        metrics.reset();
+        assertEquals(0, metrics.histogram(NEXT_FREE_DATE_SCAN_DAYS).getCount());
+    }
+}
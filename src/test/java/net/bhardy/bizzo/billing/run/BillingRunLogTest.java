@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.run;
+
+import net.bhardy.bizzo.billing.BillingPolicy;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalLong;
+
+import static java.time.DayOfWeek.MONDAY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BillingRunLogTest {
+    private static final LocalDate from = LocalDate.of(2017, 8, 1);
+    private static final LocalDate until = LocalDate.of(2017, 8, 31);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final BillingPolicy mondays = BillingPolicy.builder().weeklyOnDay(MONDAY).build();
+
+    @Test
+    public void readsBackWhatWasCheckpointed() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("run.log");
+        try (BillingRunLogWriter log = BillingRunLogWriter.open(file)) {
+            assertFalse(log.resumeAfter().isPresent());
+            for (long account = 1; account <= 3; account++) {
+                assertEquals(4, log.appendDueDates(account, mondays, from, until));
+            }
+            log.checkpoint(3);
+        }
+
+        List<String> events = readAll(file);
+        assertEquals(12, events.size());
+        assertEquals("1@2017-08-07", events.get(0));
+        assertEquals("3@2017-08-28", events.get(11));
+    }
+
+    @Test
+    public void resumesAfterTheLastCheckpointWithoutDuplicates() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("run.log");
+        try (BillingRunLogWriter log = BillingRunLogWriter.open(file)) {
+            for (long account = 1; account <= 10; account++) {
+                log.append(account, from.plusDays(account));
+                if (account % 3 == 0) {
+                    log.checkpoint(account);
+                }
+            }
+            // and then we crash
+        }
+        assertEquals(9, readAll(file).size());
+
+        try (BillingRunLogWriter log = BillingRunLogWriter.open(file)) {
+            assertEquals(OptionalLong.of(9), log.resumeAfter());
+            for (long account = log.resumeAfter().getAsLong() + 1; account <= 12; account++) {
+                log.append(account, from.plusDays(account));
+            }
+            log.checkpoint(12);
+        }
+
+        List<String> events = readAll(file);
+        assertEquals(12, events.size());
+        for (int account = 1; account <= 12; account++) {
+            assertEquals(account + "@" + from.plusDays(account), events.get(account - 1));
+        }
+    }
+
+    @Test
+    public void spansManyRegions() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("run.log");
+        int events = 1_200_000;
+        try (BillingRunLogWriter log = BillingRunLogWriter.open(file)) {
+            for (int account = 0; account < events; account++) {
+                log.append(account, 17_000 + account % 365);
+            }
+            log.checkpoint(events - 1);
+        }
+
+        try (BillingRunLogReader log = BillingRunLogReader.open(file)) {
+            assertEquals(OptionalLong.of(events - 1), log.lastCheckpoint());
+            for (int account = 0; account < events; account++) {
+                assertTrue(log.next());
+                assertEquals(account, log.account());
+                assertEquals(17_000 + account % 365, log.dueEpochDay());
+            }
+            assertFalse(log.next());
+        }
+    }
+
+    private static List<String> readAll(Path file) throws IOException {
+        List<String> events = new ArrayList<>();
+        try (BillingRunLogReader log = BillingRunLogReader.open(file)) {
+            while (log.next()) {
+                events.add(log.account() + "@" + log.dueDate());
+            }
+        }
+        return events;
+    }
+}
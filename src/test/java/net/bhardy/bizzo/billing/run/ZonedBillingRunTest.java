@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.run;
+
+import net.bhardy.bizzo.billing.BillingPolicy;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.time.DayOfWeek.SUNDAY;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ZonedBillingRunTest {
+    private static final ZoneId auckland = ZoneId.of("Pacific/Auckland");
+    private static final ZoneId losAngeles = ZoneId.of("America/Los_Angeles");
+
+    private final BillingPolicy firstOfMonth = BillingPolicy.builder().monthlyOnDay(1).build();
+    private final BillingPolicy sundays = BillingPolicy.builder().weeklyOnDay(SUNDAY).build();
+
+    @Test
+    public void eachAccountIsDueOnItsOwnCalendar() {
+        ZonedBillingRun run = ZonedBillingRun.builder()
+                .add(1, auckland, firstOfMonth)
+                .add(2, ZoneOffset.UTC, firstOfMonth)
+                .add(3, losAngeles, firstOfMonth)
+                .add(4, auckland, firstOfMonth)
+                .build();
+
+        // 6pm on new year's day in Auckland, still new year's eve in Los Angeles
+        assertArrayEquals(new long[] {1, 4, 2}, run.dueAt(Instant.parse("2017-01-01T05:00:00Z")));
+        assertArrayEquals(new long[] {2, 3}, run.dueAt(Instant.parse("2017-01-01T12:00:00Z")));
+        assertEquals(4, run.accounts());
+    }
+
+    @Test
+    public void agreesWithConvertingEachAccountAcrossDaylightSaving() {
+        List<ZoneId> zones = Arrays.asList(auckland, losAngeles, ZoneId.of("Europe/London"),
+                ZoneId.of("Asia/Kolkata"), ZoneOffset.UTC);
+        List<BillingPolicy> policies = Arrays.asList(firstOfMonth, sundays);
+        ZonedBillingRun.Builder builder = ZonedBillingRun.builder();
+        for (int account = 0; account < 20; account++) {
+            builder.add(account, zones.get(account % zones.size()), policies.get(account % policies.size()));
+        }
+        ZonedBillingRun run = builder.build();
+
+        for (Instant instant = Instant.parse("2016-12-01T00:00:00Z");
+             instant.isBefore(Instant.parse("2018-01-01T00:00:00Z"));
+             instant = instant.plus(Duration.ofMinutes(317))) {
+            List<Long> expected = new ArrayList<>();
+            for (ZoneId zone : zones) {
+                for (int account = 0; account < 20; account++) {
+                    LocalDate local = instant.atZone(zone).toLocalDate();
+                    if (zones.get(account % zones.size()).equals(zone)
+                            && policies.get(account % policies.size()).isDueOn(local)) {
+                        expected.add((long) account);
+                    }
+                }
+            }
+            List<Long> actual = new ArrayList<>();
+            run.dueAt(instant, actual::add);
+
+            assertEquals(instant.toString(), expected, actual);
+        }
+    }
+
+    @Test
+    public void listsTheMidnightsAccountsBecomeDueAt() {
+        ZonedBillingRun run = ZonedBillingRun.builder()
+                .add(1, auckland, firstOfMonth)
+                .add(2, ZoneOffset.UTC, firstOfMonth)
+                .add(3, losAngeles, firstOfMonth)
+                .add(4, ZoneId.of("Etc/UTC"), firstOfMonth)
+                .build();
+
+        assertEquals(Arrays.asList(
+                Instant.parse("2016-12-31T11:00:00Z"),
+                Instant.parse("2017-01-01T00:00:00Z"),
+                Instant.parse("2017-01-01T08:00:00Z"),
+                Instant.parse("2017-01-31T11:00:00Z")),
+                run.nextDueInstants(Instant.parse("2016-12-20T00:00:00Z"), 4));
+    }
+
+    @Test
+    public void nextDueInstantsAreStrictlyAfter() {
+        ZonedBillingRun run = ZonedBillingRun.builder().add(1, ZoneOffset.UTC, sundays).build();
+
+        assertEquals(Arrays.asList(Instant.parse("2017-08-13T00:00:00Z")),
+                run.nextDueInstants(Instant.parse("2017-08-06T00:00:00Z"), 1));
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.schedule;
+
+import net.bhardy.bizzo.billing.BillingPolicy;
+import net.bhardy.bizzo.billing.CycleType;
+import net.bhardy.bizzo.billing.FilterRegistry;
+import net.bhardy.bizzo.billing.HolidayCalendar;
+import net.bhardy.bizzo.billing.metrics.InMemoryPolicyMetrics;
+import org.junit.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static java.time.DayOfWeek.MONDAY;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.SKIP;
+import static net.bhardy.bizzo.billing.PolicyFilter.not;
+import static net.bhardy.bizzo.billing.metrics.PolicyMetrics.Counter.SCHEDULE_QUERIES;
+import static net.bhardy.bizzo.billing.metrics.PolicyMetrics.Counter.SCHEDULE_QUERIES_COALESCED;
+import static net.bhardy.bizzo.billing.metrics.PolicyMetrics.Counter.SCHEDULE_QUERIES_COMPUTED;
+import static net.bhardy.bizzo.billing.metrics.PolicyMetrics.Counter.SCHEDULE_QUERY_CACHE_HITS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScheduleQueriesTest {
+    private static final LocalDate today = LocalDate.of(2017, 8, 1);
+
+    private final InMemoryPolicyMetrics metrics = new InMemoryPolicyMetrics();
+    private final SettableClock clock = new SettableClock(today);
+
+    @Test
+    public void concurrentIdenticalQueriesAreComputedOnce() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        SlowPolicy policy = new SlowPolicy(release);
+        ScheduleQueries queries = new ScheduleQueries(clock, 100, metrics);
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<LocalDate>>> answers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                answers.add(pool.submit(() -> queries.upcoming(policy, 3)));
+            }
+            // wait until everyone but the one computing is either waiting on it or done
+            while (metrics.count(SCHEDULE_QUERIES) < threads) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            for (Future<List<LocalDate>> answer : answers) {
+                assertEquals(3, answer.get(5, TimeUnit.SECONDS).size());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertEquals(1, policy.calls.get());
+        assertEquals(1, metrics.count(SCHEDULE_QUERIES_COMPUTED));
+        assertEquals(threads - 1,
+                metrics.count(SCHEDULE_QUERIES_COALESCED) + metrics.count(SCHEDULE_QUERY_CACHE_HITS));
+    }
+
+    @Test
+    public void cacheExpiresWhenTheDayRollsOver() {
+        BillingPolicy mondays = BillingPolicy.builder().weeklyOnDay(MONDAY).build();
+        ScheduleQueries queries = new ScheduleQueries(clock, 100, metrics);
+
+        assertEquals(LocalDate.of(2017, 8, 7), queries.upcoming(mondays, 1).get(0));
+        assertEquals(LocalDate.of(2017, 8, 7), queries.upcoming(mondays, today, 1).get(0));
+        assertEquals(1, metrics.count(SCHEDULE_QUERY_CACHE_HITS));
+
+        clock.today = today.plusDays(1);
+        queries.upcoming(mondays, today, 1);
+
+        assertEquals(1, metrics.count(SCHEDULE_QUERY_CACHE_HITS));
+        assertEquals(2, metrics.count(SCHEDULE_QUERIES_COMPUTED));
+    }
+
+    @Test
+    public void cacheIsBounded() {
+        BillingPolicy mondays = BillingPolicy.builder().weeklyOnDay(MONDAY).build();
+        ScheduleQueries queries = new ScheduleQueries(clock, 2, metrics);
+
+        queries.upcoming(mondays, today, 1);
+        queries.upcoming(mondays, today, 2);
+        queries.upcoming(mondays, today, 3);
+        queries.upcoming(mondays, today, 1);
+
+        assertEquals(0, metrics.count(SCHEDULE_QUERY_CACHE_HITS));
+        queries.upcoming(mondays, today, 3);
+        assertEquals(1, metrics.count(SCHEDULE_QUERY_CACHE_HITS));
+    }
+
+    @Test
+    public void calendarEditsAreSeenStraightAway() {
+        HolidayCalendar holidays = new HolidayCalendar("holidays", Collections.emptySet());
+        BillingPolicy mondays = BillingPolicy.builder().weeklyOnDay(MONDAY).filter(not(holidays)).action(SKIP).build();
+        ScheduleQueries queries = new ScheduleQueries(clock, 100, metrics);
+
+        assertEquals(LocalDate.of(2017, 8, 7), queries.upcoming(mondays, 1).get(0));
+        holidays.add(Collections.singleton(LocalDate.of(2017, 8, 7)));
+
+        assertEquals(LocalDate.of(2017, 8, 14), queries.upcoming(mondays, 1).get(0));
+        assertEquals(0, metrics.count(SCHEDULE_QUERY_CACHE_HITS));
+    }
+
+    @Test
+    public void pinnedThreadsGetAnswersForTheirSnapshot() {
+        FilterRegistry registry = new FilterRegistry();
+        registry.put("open", day -> true);
+        BillingPolicy mondays = BillingPolicy.builder()
+                .withRegistry(registry)
+                .weeklyOnDay(MONDAY)
+                .filter("open")
+                .action(SKIP)
+                .build();
+        ScheduleQueries queries = new ScheduleQueries(clock, 100, metrics, registry);
+
+        try (FilterRegistry.Pin pin = registry.pin()) {
+            registry.put("open", day -> day.getDayOfMonth() != 7);
+
+            assertEquals(LocalDate.of(2017, 8, 7), queries.upcoming(mondays, 1).get(0));
+        }
+        assertEquals(LocalDate.of(2017, 8, 14), queries.upcoming(mondays, 1).get(0));
+        assertEquals(0, metrics.count(SCHEDULE_QUERY_CACHE_HITS));
+    }
+
+    @Test
+    public void recentAnswersSurviveEviction() {
+        BillingPolicy mondays = BillingPolicy.builder().weeklyOnDay(MONDAY).build();
+        ScheduleQueries queries = new ScheduleQueries(clock, 100, metrics);
+        for (int i = 0; i < 2000; i++) {
+            queries.upcoming(mondays, today.plusDays(i), 1);
+        }
+
+        for (int i = 1950; i < 2000; i++) {
+            queries.upcoming(mondays, today.plusDays(i), 1);
+        }
+        assertEquals(50, metrics.count(SCHEDULE_QUERY_CACHE_HITS));
+        for (int i = 0; i < 50; i++) {
+            queries.upcoming(mondays, today.plusDays(i), 1);
+        }
+        assertEquals(50, metrics.count(SCHEDULE_QUERY_CACHE_HITS));
+    }
+
+    @Test
+    public void usedAnswersGetASecondChance() {
+        BillingPolicy mondays = BillingPolicy.builder().weeklyOnDay(MONDAY).build();
+        ScheduleQueries queries = new ScheduleQueries(clock, 3, metrics);
+        queries.upcoming(mondays, today, 1);
+        queries.upcoming(mondays, today, 2);
+        queries.upcoming(mondays, today, 3);
+        queries.upcoming(mondays, today, 1);
+
+        queries.upcoming(mondays, today, 4);
+        queries.upcoming(mondays, today, 1);
+
+        assertEquals(2, metrics.count(SCHEDULE_QUERY_CACHE_HITS));
+    }
+
+    @Test
+    public void calendarsAreWorkedOutOncePerPolicy() {
+        AtomicInteger asked = new AtomicInteger();
+        BillingPolicy mondays = BillingPolicy.builder().weeklyOnDay(MONDAY).build();
+        BillingPolicy counting = new BillingPolicy() {
+            @Override
+            public boolean isDueOn(LocalDate day) {
+                return mondays.isDueOn(day);
+            }
+
+            @Override
+            public Stream<LocalDate> upcomingDueDates(LocalDate day) {
+                return mondays.upcomingDueDates(day);
+            }
+
+            @Override
+            public CycleType getCycleType() {
+                return mondays.getCycleType();
+            }
+
+            @Override
+            public Set<HolidayCalendar> calendars() {
+                asked.incrementAndGet();
+                return Collections.emptySet();
+            }
+        };
+        ScheduleQueries queries = new ScheduleQueries(clock, 100, metrics);
+        for (int i = 0; i < 10; i++) {
+            queries.upcoming(counting, today.plusDays(i % 3), 1);
+        }
+
+        assertEquals(1, asked.get());
+        assertEquals(7, metrics.count(SCHEDULE_QUERY_CACHE_HITS));
+    }
+
+    @Test
+    public void failuresAreSharedAndNotCached() {
+        BillingPolicy broken = new SlowPolicy(null);
+        ScheduleQueries queries = new ScheduleQueries(clock, 100, metrics);
+        for (int i = 0; i < 2; i++) {
+            try {
+                queries.upcoming(broken, today, 1);
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage().contains("broken"));
+            }
+        }
+        assertEquals(2, metrics.count(SCHEDULE_QUERIES_COMPUTED));
+    }
+
+    private static final class SlowPolicy implements BillingPolicy {
+        private final CountDownLatch release;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        SlowPolicy(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public boolean isDueOn(LocalDate day) {
+            return true;
+        }
+
+        @Override
+        public Stream<LocalDate> upcomingDueDates(LocalDate day) {
+            calls.incrementAndGet();
+            if (release == null) {
+                throw new IllegalStateException("broken");
+            }
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Stream.iterate(day, date -> date.plusDays(1));
+        }
+
+        @Override
+        public CycleType getCycleType() {
+            return CycleType.DAILY;
+        }
+    }
+
+    private static final class SettableClock extends Clock {
+        private volatile LocalDate today;
+
+        SettableClock(LocalDate today) {
+            this.today = today;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return today.atStartOfDay(ZoneOffset.UTC).toInstant();
+        }
+    }
+}
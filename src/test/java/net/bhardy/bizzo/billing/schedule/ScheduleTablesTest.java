@@ -0,0 +1,166 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.schedule;
+
+import net.bhardy.bizzo.billing.BillingPolicy;
+import net.bhardy.bizzo.billing.HolidayCalendar;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static java.time.DayOfWeek.FRIDAY;
+import static java.time.DayOfWeek.SATURDAY;
+import static java.time.DayOfWeek.SUNDAY;
+import static java.util.stream.Collectors.toList;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.NEXT_DAY;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.PREVIOUS_DAY;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.SKIP;
+import static net.bhardy.bizzo.billing.PolicyFilter.daysOfWeek;
+import static net.bhardy.bizzo.billing.PolicyFilter.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScheduleTablesTest {
+    private static final LocalDate from = LocalDate.of(2017, 1, 1);
+    private static final LocalDate until = LocalDate.of(2018, 12, 31);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final HolidayCalendar holidays = new HolidayCalendar("holidays",
+            Collections.singleton(LocalDate.of(2017, 12, 25)));
+    private final BillingPolicy payDay = BillingPolicy.builder()
+            .monthlyOnDay(25)
+            .filter(not(holidays))
+            .action(PREVIOUS_DAY)
+            .build();
+    private final BillingPolicy fridays = BillingPolicy.builder()
+            .weeklyOnDay(FRIDAY)
+            .filter(not(daysOfWeek(SATURDAY, SUNDAY)))
+            .action(NEXT_DAY)
+            .build();
+
+    private ScheduleTables exportAndLoad() throws IOException {
+        Map<String, BillingPolicy> policies = new LinkedHashMap<>();
+        policies.put("payDay", payDay);
+        policies.put("fridays", fridays);
+        Path file = folder.getRoot().toPath().resolve("tables.bin");
+        ScheduleTables.export(file, policies, from, until);
+        return ScheduleTables.load(file);
+    }
+
+    @Test
+    public void servesTheSameDueDates() throws IOException {
+        ScheduleTables tables = exportAndLoad();
+        BillingPolicy served = tables.serve("payDay", payDay);
+
+        assertNotSame(payDay, served);
+        for (LocalDate day = from.minusDays(40); day.isBefore(until.plusDays(40)); day = day.plusDays(1)) {
+            assertEquals(day.toString(), payDay.isDueOn(day), served.isDueOn(day));
+        }
+        assertTrue(served.isDueOn(LocalDate.of(2017, 12, 24)));
+        assertEquals(new HashSet<>(Arrays.asList("payDay", "fridays")), tables.keys());
+    }
+
+    @Test
+    public void handsOverToTheLivePolicyAfterTheTable() throws IOException {
+        BillingPolicy served = exportAndLoad().serve("fridays", fridays);
+
+        LocalDate lateInTheTable = until.minusDays(20);
+        assertEquals(fridays.upcomingDueDates(lateInTheTable).limit(10).collect(toList()),
+                served.upcomingDueDates(lateInTheTable).limit(10).collect(toList()));
+    }
+
+    @Test
+    public void streamsMatchTheLivePolicyWhenDatesMove() throws IOException {
+        BillingPolicy fifth = BillingPolicy.builder()
+                .monthlyOnDay(5)
+                .filter(not(daysOfWeek(SATURDAY, SUNDAY)))
+                .action(NEXT_DAY)
+                .build();
+        Map<String, BillingPolicy> policies = new LinkedHashMap<>();
+        policies.put("fifth", fifth);
+        policies.put("payDay", payDay);
+        Path file = folder.getRoot().toPath().resolve("moving.bin");
+        ScheduleTables.export(file, policies, from, until);
+        ScheduleTables tables = ScheduleTables.load(file);
+
+        // the 5th of August 2017 is a Saturday, moved to Monday the 7th
+        BillingPolicy served = tables.serve("fifth", fifth);
+        assertEquals(Arrays.asList(LocalDate.of(2017, 9, 5), LocalDate.of(2017, 10, 5)),
+                served.upcomingDueDates(LocalDate.of(2017, 8, 6)).limit(2).collect(toList()));
+
+        for (Map.Entry<String, BillingPolicy> policy : policies.entrySet()) {
+            BillingPolicy tabled = tables.serve(policy.getKey(), policy.getValue());
+            for (LocalDate day = from; day.isBefore(until); day = day.plusDays(1)) {
+                assertEquals(policy.getKey() + " " + day,
+                        policy.getValue().upcomingDueDates(day).limit(4).collect(toList()),
+                        tabled.upcomingDueDates(day).limit(4).collect(toList()));
+            }
+        }
+    }
+
+    @Test
+    public void policiesThatCantBeDescribedAreNeverServed() throws IOException {
+        Set<LocalDate> blackout = new HashSet<>(Collections.singleton(LocalDate.of(2017, 3, 5)));
+        BillingPolicy exported = BillingPolicy.builder().daily().filter(day -> !blackout.contains(day)).action(SKIP).build();
+        Path file = folder.getRoot().toPath().resolve("lambda.bin");
+        ScheduleTables.export(file, Collections.singletonMap("lambda", exported), from, until);
+        ScheduleTables tables = ScheduleTables.load(file);
+
+        Set<LocalDate> otherBlackout = new HashSet<>(Collections.singleton(LocalDate.of(2017, 3, 6)));
+        BillingPolicy live = BillingPolicy.builder().daily().filter(day -> !otherBlackout.contains(day)).action(SKIP).build();
+
+        assertFalse(ScheduleTables.structureHash(live).isPresent());
+        assertFalse(tables.isCurrent("lambda", live));
+        assertSame(live, tables.serve("lambda", live));
+        assertSame(exported, tables.serve("lambda", exported));
+    }
+
+    @Test
+    public void staleTablesAreIgnored() throws IOException {
+        ScheduleTables tables = exportAndLoad();
+        assertTrue(tables.isCurrent("payDay", payDay));
+
+        holidays.add(Collections.singleton(LocalDate.of(2018, 1, 1)));
+
+        assertFalse(tables.isCurrent("payDay", payDay));
+        assertSame(payDay, tables.serve("payDay", payDay));
+        assertTrue(tables.isCurrent("fridays", fridays));
+        assertSame(fridays, tables.serve("nonsense", fridays));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        Path file = folder.newFile("nonsense.bin").toPath();
+        Files.write(file, "this is not a table".getBytes("UTF-8"));
+        ScheduleTables.load(file);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 Ben Hardy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.bhardy.bizzo.billing.schedule;
+
+import net.bhardy.bizzo.billing.ActionChoice;
+import net.bhardy.bizzo.billing.BillingPolicy;
+import net.bhardy.bizzo.billing.FilterRegistry;
+import net.bhardy.bizzo.billing.HolidayCalendar;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static java.time.DayOfWeek.MONDAY;
+import static java.time.DayOfWeek.SATURDAY;
+import static java.time.DayOfWeek.SUNDAY;
+import static java.util.Collections.singleton;
+import static net.bhardy.bizzo.billing.ActionChoice.Kind.NEXT_DAY;
+import static net.bhardy.bizzo.billing.PolicyFilter.and;
+import static net.bhardy.bizzo.billing.PolicyFilter.daysOfWeek;
+import static net.bhardy.bizzo.billing.PolicyFilter.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScheduleTrackerTest {
+    private static final LocalDate from = LocalDate.of(2017, 1, 1);
+    private static final LocalDate until = LocalDate.of(2018, 12, 31);
+    private static final LocalDate christmas = LocalDate.of(2017, 12, 25);
+
+    @Test
+    public void holidayOnDueDateMovesIt() {
+        HolidayCalendar holidays = new HolidayCalendar("test", Collections.emptySet());
+        BillingPolicy mondays = BillingPolicy.builder()
+                .weeklyOnDay(MONDAY)
+                .filter(not(holidays))
+                .action(NEXT_DAY)
+                .build();
+        List<List<DueDateChange<String>>> published = new ArrayList<>();
+        ScheduleTracker<String> tracker = new ScheduleTracker<>();
+        tracker.subscribe(published::add);
+        tracker.track("mondays", mondays, from, until);
+
+        holidays.add(singleton(christmas));
+
+        assertEquals(1, published.size());
+        assertEquals(Collections.singletonList(
+                new DueDateChange<>("mondays", mondays, christmas, christmas.plusDays(1))), published.get(0));
+        assertTrue(tracker.schedule("mondays").contains(christmas.plusDays(1)));
+
+        holidays.remove(singleton(christmas));
+
+        assertEquals(Collections.singletonList(
+                new DueDateChange<>("mondays", mondays, christmas.plusDays(1), christmas)), published.get(1));
+    }
+
+    @Test
+    public void holidayOffDueDateChangesNothing() {
+        HolidayCalendar holidays = new HolidayCalendar("test", Collections.emptySet());
+        BillingPolicy mondays = BillingPolicy.builder()
+                .weeklyOnDay(MONDAY)
+                .filter(not(holidays))
+                .action(NEXT_DAY)
+                .build();
+        ScheduleTracker<String> tracker = new ScheduleTracker<>();
+        tracker.track("mondays", mondays, from, until);
+
+        assertTrue(holidays.add(singleton(christmas.plusDays(2))).getAdded().contains(christmas.plusDays(2)));
+        assertEquals(0, tracker.recompute(holidays.add(singleton(christmas.plusDays(3)))).size());
+    }
+
+    @Test
+    public void untrackedPoliciesAreNotListening() {
+        HolidayCalendar holidays = new HolidayCalendar("test", Collections.emptySet());
+        BillingPolicy mondays = BillingPolicy.builder()
+                .weeklyOnDay(MONDAY)
+                .filter(not(holidays))
+                .action(NEXT_DAY)
+                .build();
+        ScheduleTracker<String> tracker = new ScheduleTracker<>();
+        tracker.track("mondays", mondays, from, until);
+        tracker.untrack("mondays");
+
+        assertEquals(0, tracker.recompute(holidays.add(singleton(christmas))).size());
+    }
+
+    @Test
+    public void untrackingForgetsTheCalendarsItListenedTo() {
+        HolidayCalendar before = new HolidayCalendar("hol", Collections.emptySet());
+        FilterRegistry registry = new FilterRegistry();
+        registry.put("hol", before);
+        BillingPolicy mondays = BillingPolicy.builder()
+                .weeklyOnDay(MONDAY)
+                .filter(not(registry.ref("hol")))
+                .action(NEXT_DAY)
+                .build();
+        ScheduleTracker<String> tracker = new ScheduleTracker<>();
+        tracker.track("mondays", mondays, from, until);
+
+        registry.putCalendar(new HolidayCalendar("hol", singleton(christmas)));
+        tracker.untrack("mondays");
+
+        assertEquals(0, tracker.recompute(before.add(singleton(christmas))).size());
+    }
+
+    @Test
+    public void followsRegistryUpdates() {
+        FilterRegistry registry = new FilterRegistry();
+        registry.putCalendar(new HolidayCalendar("hol", Collections.emptySet()));
+        BillingPolicy mondays = BillingPolicy.builder()
+                .weeklyOnDay(MONDAY)
+                .filter(and(not(registry.ref("hol")), not(daysOfWeek(SATURDAY, SUNDAY))))
+                .action(NEXT_DAY)
+                .build();
+        List<List<DueDateChange<String>>> published = new ArrayList<>();
+        ScheduleTracker<String> tracker = new ScheduleTracker<>();
+        tracker.subscribe(published::add);
+        tracker.follow(registry);
+        tracker.track("mondays", mondays, from, until);
+
+        HolidayCalendar edited = new HolidayCalendar("hol", singleton(christmas));
+        registry.putCalendar(edited);
+
+        assertEquals(Collections.singletonList(Collections.singletonList(
+                new DueDateChange<>("mondays", mondays, christmas, christmas.plusDays(1)))), published);
+
+        // the registry keeps its own copy, so editing ours changes nothing until it's put again
+        edited.remove(singleton(christmas));
+        assertEquals(1, published.size());
+        registry.putCalendar(edited);
+        assertEquals(Collections.singletonList(
+                new DueDateChange<>("mondays", mondays, christmas.plusDays(1), christmas)), published.get(1));
+
+        tracker.close();
+        registry.putCalendar(new HolidayCalendar("hol", singleton(christmas)));
+        assertEquals(2, published.size());
+    }
+
+    @Test
+    public void incrementalMatchesFullRecomputation() {
+        Random random = new Random(42);
+        for (ActionChoice.Kind kind : ActionChoice.Kind.values()) {
+            HolidayCalendar holidays = new HolidayCalendar("random", Collections.emptySet());
+            BillingPolicy policy = BillingPolicy.builder()
+                    .monthlyOnDay(5)
+                    .filter(and(not(holidays), not(daysOfWeek(SATURDAY, SUNDAY))))
+                    .action(kind)
+                    .build();
+            ScheduleTracker<ActionChoice.Kind> tracker = new ScheduleTracker<>();
+            tracker.track(kind, policy, from, until);
+
+            for (int edit = 0; edit < 200; edit++) {
+                LocalDate day = from.plusDays(random.nextInt(730));
+                if (random.nextBoolean()) {
+                    holidays.add(singleton(day));
+                } else {
+                    holidays.remove(singleton(holidays.days().stream().findAny().orElse(day)));
+                }
+                List<LocalDate> expected = dueUntil(policy);
+                assertEquals(kind + " after edit " + edit, expected, new ArrayList<>(tracker.schedule(kind)));
+            }
+        }
+    }
+
+    private static List<LocalDate> dueUntil(BillingPolicy policy) {
+        List<LocalDate> dates = new ArrayList<>();
+        Iterator<LocalDate> upcoming = policy.upcomingDueDates(from).iterator();
+        for (LocalDate date = upcoming.next(); !date.isAfter(until); date = upcoming.next()) {
+            dates.add(date);
+        }
+        return dates;
+    }
+}